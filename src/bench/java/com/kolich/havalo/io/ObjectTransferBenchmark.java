@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io;
+
+import static java.lang.Integer.parseInt;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.commons.io.IOUtils.copyLarge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Measures object download throughput through an embedded Jetty, over
+ * loopback, for each way an object body can be sent:
+ * 
+ *   copyLarge  commons-io copyLarge from a FileInputStream, the way
+ *              objects were sent before {@link ObjectTransfer}
+ *   copy       {@link ObjectTransfer#copy}, pooled positional reads
+ *   send       {@link ObjectDownload#send}, mmap + sendContent
+ *   async      {@link ObjectDownload#sendAsync}, mapped chunks written
+ *              from the WriteListener
+ * 
+ * Usage: ObjectTransferBenchmark [size-in-MB] [rounds] [requests-per-round]
+ * 
+ * The object file is written once up front, such that every round reads
+ * it from a warm page cache.  The client drains the socket into a direct
+ * buffer, without looking at the bytes.
+ */
+public final class ObjectTransferBenchmark {
+	
+	private static final String[] MODES = {"copyLarge", "copy", "send",
+		"async"};
+	
+	private static final int CLIENT_BUFFER_SIZE = 1024 * 1024;
+	
+	// Cannot instantiate
+	private ObjectTransferBenchmark() {}
+	
+	public static final void main(final String[] args) throws Exception {
+		final int sizeMB = (args.length > 0) ? parseInt(args[0]) : 256;
+		final int rounds = (args.length > 1) ? parseInt(args[1]) : 5;
+		final int requests = (args.length > 2) ? parseInt(args[2]) : 10;
+		final File file = File.createTempFile("havalo-bench-", ".bin");
+		try {
+			writeObject(file, sizeMB);
+			final Server server = new Server(0);
+			server.setHandler(new ObjectHandler(file));
+			server.start();
+			try {
+				final int port = ((ServerConnector)server.getConnectors()[0])
+					.getLocalPort();
+				System.out.println("Object: " + sizeMB + "MB, " + requests +
+					" GETs per mode per round");
+				for(int round = 0; round < rounds; round++) {
+					final StringBuilder sb = new StringBuilder("Round " +
+						round + ":");
+					for(final String mode : MODES) {
+						final long start = System.nanoTime();
+						long bytes = 0L;
+						for(int i = 0; i < requests; i++) {
+							bytes += get(port, mode);
+						}
+						final double seconds = (System.nanoTime() - start) / 1e9;
+						sb.append(String.format("  %s %,.0f MB/s", mode,
+							bytes / 1e6 / seconds));
+					}
+					System.out.println(sb);
+				}
+			} finally {
+				server.stop();
+			}
+		} finally {
+			deleteQuietly(file);
+		}
+	}
+	
+	private static final void writeObject(final File file, final int sizeMB)
+		throws IOException {
+		final byte[] chunk = new byte[1024 * 1024];
+		new Random(1L).nextBytes(chunk);
+		try(final OutputStream os = new FileOutputStream(file)) {
+			for(int i = 0; i < sizeMB; i++) {
+				os.write(chunk);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a GET for the object in the given mode, and returns the number
+	 * of bytes received, headers included.
+	 */
+	private static final long get(final int port, final String mode)
+		throws IOException {
+		try(final SocketChannel socket = SocketChannel.open(
+			new InetSocketAddress("127.0.0.1", port))) {
+			socket.write(ByteBuffer.wrap(("GET /?mode=" + mode + " HTTP/1.1\r\n" +
+				"Host: localhost\r\nConnection: close\r\n\r\n").getBytes("US-ASCII")));
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(
+				CLIENT_BUFFER_SIZE);
+			long received = 0L;
+			int read;
+			while((read = socket.read(buffer)) >= 0) {
+				received += read;
+				buffer.clear();
+			}
+			return received;
+		}
+	}
+	
+	private static final class ObjectHandler extends AbstractHandler {
+		
+		private final File file_;
+		
+		private ObjectHandler(final File file) {
+			file_ = file;
+		}
+		
+		@Override
+		public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+			baseRequest.setHandled(true);
+			final String mode = request.getParameter("mode");
+			final long length = file_.length();
+			response.setContentLengthLong(length);
+			final FileInputStream fis = new FileInputStream(file_);
+			if("copyLarge".equals(mode)) {
+				try {
+					copyLarge(fis, response.getOutputStream());
+				} finally {
+					closeQuietly(fis);
+				}
+				return;
+			}
+			final FileChannel channel = fis.getChannel();
+			if("copy".equals(mode)) {
+				try {
+					ObjectTransfer.copy(channel, 0L, length,
+						response.getOutputStream());
+				} finally {
+					closeQuietly(fis);
+				}
+				return;
+			}
+			// The download owns, and closes, the channel.
+			final AsyncContext context = request.startAsync();
+			context.setTimeout(0L);
+			final ObjectDownload download = new ObjectDownload(channel, 0L,
+				length).add(0L, length);
+			if("async".equals(mode)) {
+				download.sendAsync(response.getOutputStream(), context);
+			} else {
+				download.send(response.getOutputStream(), context);
+			}
+		}
+		
+	}
+	
+}
@@ -49,10 +49,46 @@ public final class HavaloConfigurationFactory {
 		"havalo-kvs.repository.base";
 	public static final String HAVALO_REPO_MAX_FILENAME_LENGTH_PROPERTY =
 		"havalo-kvs.repository.maxfilename.length";
+	public static final String HAVALO_REPO_OBJECT_LAYOUT_PROPERTY =
+		"havalo-kvs.repository.object.layout";
+	public static final String HAVALO_REPO_COMPACTION_LOG_MAX_RECORDS_PROPERTY =
+		"havalo-kvs.repository.compaction.log.max.records";
+	public static final String HAVALO_REPO_COMPACTION_LOG_MAX_SIZE_PROPERTY =
+		"havalo-kvs.repository.compaction.log.max.size";
+	public static final String HAVALO_REPO_FLUSH_DELAY_PROPERTY =
+		"havalo-kvs.repository.flush.delay";
+	public static final String HAVALO_REPO_FLUSH_MAX_DIRTY_PROPERTY =
+		"havalo-kvs.repository.flush.max.dirty";
+	public static final String HAVALO_REPO_CACHE_MAX_OBJECTS_PROPERTY =
+		"havalo-kvs.repository.cache.max.objects";
+	public static final String HAVALO_REPO_CACHE_EXPIRE_AFTER_ACCESS_PROPERTY =
+		"havalo-kvs.repository.cache.expire.after.access";
+	public static final String HAVALO_REPO_CACHE_MAX_CONCURRENT_LOADS_PROPERTY =
+		"havalo-kvs.repository.cache.max.concurrent.loads";
+	public static final String HAVALO_REPO_SEGMENTS_MAX_OBJECT_SIZE_PROPERTY =
+		"havalo-kvs.repository.segments.max.object.size";
+	public static final String HAVALO_REPO_SEGMENTS_MAX_SEGMENT_SIZE_PROPERTY =
+		"havalo-kvs.repository.segments.max.segment.size";
+	public static final String HAVALO_REPO_SEGMENTS_GARBAGE_RATIO_PROPERTY =
+		"havalo-kvs.repository.segments.garbage.ratio";
+	public static final String HAVALO_REPO_INLINE_MAX_OBJECT_SIZE_PROPERTY =
+		"havalo-kvs.repository.inline.max.object.size";
+	public static final String HAVALO_REPO_INLINE_MAX_REPOSITORY_SIZE_PROPERTY =
+		"havalo-kvs.repository.inline.max.repository.size";
+	public static final String HAVALO_REPO_DEDUPLICATION_PROPERTY =
+		"havalo-kvs.repository.deduplication";
+	public static final String HAVALO_REPO_META_COMPRESSION_CODEC_PROPERTY =
+		"havalo-kvs.repository.meta.compression.codec";
+	public static final String HAVALO_REPO_META_COMPRESSION_LEVEL_PROPERTY =
+		"havalo-kvs.repository.meta.compression.level";
 	public static final String HAVALO_ADMIN_API_UUID_PROPERTY =
 		"havalo-kvs.api.admin.uuid";
 	public static final String HAVALO_ADMIN_API_SECRET_PROPERTY =
 		"havalo-kvs.api.admin.secret";
+	public static final String HAVALO_API_NONBLOCKING_IO_PROPERTY =
+		"havalo-kvs.api.nonblocking.io";
+	public static final String HAVALO_API_HEAD_VERIFY_PROPERTY =
+		"havalo-kvs.api.head.verify";
 	
 	public static final String HAVALO_UPLOAD_MAX_SIZE_PROPERTY =
 		"havalo-kvs.upload.max.size";
@@ -167,6 +203,86 @@ public final class HavaloConfigurationFactory {
 			HAVALO_REPO_MAX_FILENAME_LENGTH_PROPERTY);
 	}
 	
+	public static final String getObjectLayout() {
+		return getConfigInstance().getString(
+			HAVALO_REPO_OBJECT_LAYOUT_PROPERTY);
+	}
+	
+	public static final long getSegmentsMaxObjectSize() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_SEGMENTS_MAX_OBJECT_SIZE_PROPERTY);
+	}
+	
+	public static final long getSegmentsMaxSegmentSize() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_SEGMENTS_MAX_SEGMENT_SIZE_PROPERTY);
+	}
+	
+	public static final double getSegmentsGarbageRatio() {
+		return getConfigInstance().getDouble(
+			HAVALO_REPO_SEGMENTS_GARBAGE_RATIO_PROPERTY);
+	}
+	
+	public static final long getInlineMaxObjectSize() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_INLINE_MAX_OBJECT_SIZE_PROPERTY);
+	}
+	
+	public static final long getInlineMaxRepositorySize() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_INLINE_MAX_REPOSITORY_SIZE_PROPERTY);
+	}
+	
+	public static final boolean getDeduplication() {
+		return getConfigInstance().getBoolean(
+			HAVALO_REPO_DEDUPLICATION_PROPERTY);
+	}
+	
+	public static final long getCompactionLogMaxRecords() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_COMPACTION_LOG_MAX_RECORDS_PROPERTY);
+	}
+	
+	public static final long getCompactionLogMaxSize() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_COMPACTION_LOG_MAX_SIZE_PROPERTY);
+	}
+	
+	public static final long getFlushDelay() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_FLUSH_DELAY_PROPERTY);
+	}
+	
+	public static final long getFlushMaxDirty() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_FLUSH_MAX_DIRTY_PROPERTY);
+	}
+	
+	public static final long getCacheMaxObjects() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_CACHE_MAX_OBJECTS_PROPERTY);
+	}
+	
+	public static final long getCacheExpireAfterAccess() {
+		return getConfigInstance().getLong(
+			HAVALO_REPO_CACHE_EXPIRE_AFTER_ACCESS_PROPERTY);
+	}
+	
+	public static final int getCacheMaxConcurrentLoads() {
+		return getConfigInstance().getInt(
+			HAVALO_REPO_CACHE_MAX_CONCURRENT_LOADS_PROPERTY);
+	}
+	
+	public static final String getMetaCompressionCodec() {
+		return getConfigInstance().getString(
+			HAVALO_REPO_META_COMPRESSION_CODEC_PROPERTY);
+	}
+	
+	public static final int getMetaCompressionLevel() {
+		return getConfigInstance().getInt(
+			HAVALO_REPO_META_COMPRESSION_LEVEL_PROPERTY);
+	}
+	
 	public static final String getHavaloAdminUUID() {
 		return getConfigInstance().getString(
 			HAVALO_ADMIN_API_UUID_PROPERTY);
@@ -177,6 +293,16 @@ public final class HavaloConfigurationFactory {
 			HAVALO_ADMIN_API_SECRET_PROPERTY);
 	}
 
+	public static final boolean getNonBlockingIo() {
+		return getConfigInstance().getBoolean(
+			HAVALO_API_NONBLOCKING_IO_PROPERTY);
+	}
+
+	public static final boolean getVerifyHead() {
+		return getConfigInstance().getBoolean(
+			HAVALO_API_HEAD_VERIFY_PROPERTY);
+	}
+
 	public static final long getMaxUploadSize() {
 		return getConfigInstance().getLong(
 			HAVALO_UPLOAD_MAX_SIZE_PROPERTY);
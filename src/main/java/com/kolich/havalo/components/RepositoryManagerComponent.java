@@ -33,7 +33,9 @@ import com.kolich.havalo.entities.types.KeyPair;
 import com.kolich.havalo.entities.types.UserRole;
 import com.kolich.havalo.exceptions.BootstrapException;
 import com.kolich.havalo.exceptions.repositories.RepositoryCreationException;
+import com.kolich.havalo.io.codecs.MetaCodec;
 import com.kolich.havalo.io.managers.RepositoryManager;
+import com.kolich.havalo.io.stores.ObjectLayout;
 import com.typesafe.config.Config;
 import org.slf4j.Logger;
 
@@ -44,6 +46,7 @@ import java.util.UUID;
 
 import static com.kolich.havalo.HavaloConfigurationFactory.*;
 import static com.kolich.havalo.entities.types.UserRole.ADMIN;
+import static com.kolich.havalo.io.codecs.MetaCodec.getByName;
 import static org.apache.commons.lang3.StringUtils.abbreviate;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -88,7 +91,46 @@ public class RepositoryManagerComponent {
         final int maxFilenameLength = getMaxFilenameLength();
         logger__.info("Max repository object filename length: " +
             maxFilenameLength);
-        return new RepositoryManager(realPath, maxFilenameLength);
+        final long maxLogRecords = getCompactionLogMaxRecords(),
+            maxLogSize = getCompactionLogMaxSize();
+        logger__.info("Compacting repository logs beyond: " +
+            maxLogRecords + "-records or " + maxLogSize + "-bytes");
+        final long flushDelay = getFlushDelay(),
+            flushMaxDirty = getFlushMaxDirty();
+        logger__.info("Flushing repository meta data after: " + flushDelay +
+            "ms quiet, " + flushMaxDirty + "ms dirty at most");
+        final MetaCodec metaCodec = getByName(getMetaCompressionCodec(),
+            getMetaCompressionLevel());
+        logger__.info("Compressing repository meta data with: " + metaCodec);
+        final ObjectLayout objectLayout = ObjectLayout.getByName(getObjectLayout());
+        logger__.info("Laying out repository objects with: " + objectLayout);
+        final long maxSegmentedObjectSize = getSegmentsMaxObjectSize(),
+            maxSegmentSize = getSegmentsMaxSegmentSize();
+        final double segmentGarbageRatio = getSegmentsGarbageRatio();
+        logger__.info("Packing objects up to: " + maxSegmentedObjectSize +
+            "-bytes into segments of " + maxSegmentSize + "-bytes, " +
+            "collected at " + segmentGarbageRatio + " garbage");
+        final long maxInlineObjectSize = getInlineMaxObjectSize(),
+            maxInlineRepositorySize = getInlineMaxRepositorySize();
+        logger__.info("Storing objects up to: " + maxInlineObjectSize +
+            "-bytes inline, " + maxInlineRepositorySize + "-bytes per " +
+            "repository at most");
+        final boolean deduplication = getDeduplication();
+        logger__.info("Deduplicating object bodies: " + deduplication);
+        final long maxCachedObjects = getCacheMaxObjects(),
+            cacheExpireAfterAccess = getCacheExpireAfterAccess();
+        logger__.info("Caching repositories indexing up to: " +
+            maxCachedObjects + "-objects in total, unloaded after " +
+            cacheExpireAfterAccess + "ms idle (0 for no limit)");
+        final int maxConcurrentLoads = getCacheMaxConcurrentLoads();
+        logger__.info("Loading up to: " + maxConcurrentLoads +
+            "-repositories from disk at once");
+        return new RepositoryManager(realPath, maxFilenameLength,
+            maxLogRecords, maxLogSize, flushDelay, flushMaxDirty, metaCodec,
+            objectLayout, maxSegmentedObjectSize, maxSegmentSize,
+            segmentGarbageRatio, maxInlineObjectSize, maxInlineRepositorySize,
+            deduplication, maxCachedObjects, cacheExpireAfterAccess,
+            maxConcurrentLoads);
     }
 
     private static final RepositoryManager createInitialAdminRepository(final ServletContext context) {
@@ -128,16 +170,22 @@ public class RepositoryManagerComponent {
             // Create a new keypair for the default ADMIN level user.
             final KeyPair adminKeyPair = new KeyPair(new HavaloUUID(adminUUID),
                 adminSecret, Arrays.asList(new UserRole[]{ADMIN}));
-            // Actually attempt to create a new Repository for the Admin user.
-            // This should work, if not, bail the whole app.
-            repoManager.createRepository(adminKeyPair.getKey(), adminKeyPair);
-            return repoManager;
-        } catch (RepositoryCreationException e) {
-            // Log in TRACE and continue silently.  This is a normal case,
-            // when the admin repo has already been created on firstboot
-            // but Havalo is being re-started.
-            logger__.trace("Failed to create ADMIN user repository -- " +
-                "repository already exists.", e);
+            try {
+                // Actually attempt to create a new Repository for the Admin
+                // user.
+                repoManager.createRepository(adminKeyPair.getKey(),
+                    adminKeyPair);
+            } catch (RepositoryCreationException e) {
+                // Log in TRACE and continue silently.  This is a normal case,
+                // when the admin repo has already been created on firstboot
+                // but Havalo is being re-started.
+                logger__.trace("Failed to create ADMIN user repository -- " +
+                    "repository already exists.", e);
+            }
+            // Requests are authenticated against the credential index, make
+            // sure it holds the configured admin key pair on every boot, not
+            // only the first one.
+            repoManager.putKeyPair(adminKeyPair);
         } catch (Exception e) {
             // Hm, something else went wrong on startup, need to log
             // and then bail.  The application cannot continue at this point.
@@ -26,14 +26,36 @@
 
 package com.kolich.havalo.controllers;
 
+import com.kolich.bolt.exceptions.LockConflictException;
 import com.kolich.havalo.entities.types.*;
+import com.kolich.havalo.exceptions.HavaloException;
 import com.kolich.havalo.io.managers.RepositoryManager;
 import com.kolich.havalo.mappers.ObjectKeyArgumentMapper.ObjectKey;
+import curacao.entities.CuracaoEntity;
+import org.slf4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+import static javax.servlet.http.HttpServletResponse.SC_CONFLICT;
+import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static org.slf4j.LoggerFactory.getLogger;
 
 public abstract class HavaloApiController {
 
+    private static final Logger logger__ = getLogger(HavaloApiController.class);
+
     protected final RepositoryManager repositoryManager_;
 
     public HavaloApiController(final RepositoryManager repositoryManager) {
@@ -46,12 +68,82 @@ public abstract class HavaloApiController {
         return repositoryManager_.createRepository(id, keyPair);
     }
 
+    protected final Repository createRepository(final HavaloUUID id,
+                                                final KeyPair keyPair,
+                                                final boolean compressed) {
+        return repositoryManager_.createRepository(id, keyPair, compressed);
+    }
+
+    protected final Repository setRepositoryCompressed(final Repository repo,
+                                                       final boolean compressed) {
+        return repositoryManager_.setRepositoryCompressed(repo, compressed);
+    }
+
     protected final void deleteRepository(final HavaloUUID id) {
         repositoryManager_.deleteRepository(id);
     }
 
-    protected final Repository getRepository(final HavaloUUID userId) {
-        return repositoryManager_.getRepository(userId);
+    /**
+     * Called with the repository of a request, once it's loaded.
+     */
+    protected interface RepositoryCallback {
+        public void run(final Repository repo) throws Exception;
+    }
+
+    /**
+     * Runs the given callback with the repository of the given user.  If
+     * the repository is loaded already, the callback runs right away on the
+     * calling thread, and anything it throws is thrown from here.  If not,
+     * the repository is loaded in the background and this returns right
+     * away, without holding on to the calling thread; the callback then
+     * runs on a container thread (see {@link AsyncContext#start}) once the
+     * repository is loaded, and any failure, of the load or the callback,
+     * is rendered to the response, completing the request.
+     */
+    protected final void withRepository(final HavaloUUID userId,
+                                        final HttpServletResponse response,
+                                        final AsyncContext context,
+                                        final RepositoryCallback callback) throws Exception {
+        final CompletableFuture<Repository> future =
+            repositoryManager_.getRepositoryAsync(userId);
+        if(future.isDone()) {
+            final Repository repo;
+            try {
+                repo = future.join();
+            } catch (CompletionException e) {
+                throw unwrap(e);
+            }
+            callback.run(repo);
+            return;
+        }
+        future.whenComplete(new BiConsumer<Repository,Throwable>() {
+            @Override
+            public void accept(final Repository repo, final Throwable t) {
+                if(t != null) {
+                    renderFailure(response, unwrap(t));
+                    context.complete();
+                    return;
+                }
+                context.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            callback.run(repo);
+                        } catch (Exception e) {
+                            renderFailure(response, e);
+                            context.complete();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static final Exception unwrap(final Throwable t) {
+        final Throwable cause = (t instanceof CompletionException &&
+            t.getCause() != null) ? t.getCause() : t;
+        return (cause instanceof Exception) ? (Exception)cause :
+            new RuntimeException(cause);
     }
 
     protected final HashedFileObject getHashedFileObject(final Repository repo,
@@ -87,6 +179,70 @@ public abstract class HavaloApiController {
         return getCanonicalObject(repo, hfo, false);
     }
 
+    /**
+     * Moves the file of the given object to where the configured object
+     * layout expects it, if it was not moved there yet.  Returns true if the
+     * file was moved.
+     */
+    protected final boolean migrateObject(final Repository repo,
+                                          final HashedFileObject hfo) throws IOException {
+        return repositoryManager_.migrateObject(repo, hfo);
+    }
+
+    /**
+     * Returns true if an object of the given length is stored in a packed
+     * segment of its repository, instead of a file of its own.
+     */
+    protected final boolean isSegmented(final long length) {
+        return repositoryManager_.isSegmented(length);
+    }
+
+    protected final SegmentPointer writeSegment(final Repository repo,
+                                                final HashedFileObject hfo,
+                                                final byte[] value) throws IOException {
+        return repositoryManager_.writeSegment(repo, hfo, value);
+    }
+
+    /**
+     * Returns true if an object of the given length may be stored inline,
+     * in the in-memory index of its repository, budget permitting.
+     */
+    protected final boolean isInlined(final long length) {
+        return repositoryManager_.isInlined(length);
+    }
+
+    protected final boolean writeInline(final Repository repo,
+                                        final HashedFileObject hfo,
+                                        final byte[] value) {
+        return repositoryManager_.writeInline(repo, hfo, value);
+    }
+
+    protected final boolean isDeduplicated() {
+        return repositoryManager_.isDeduplicated();
+    }
+
+    protected final File writeBlob(final Repository repo,
+                                   final HashedFileObject hfo,
+                                   final File file,
+                                   final String hash) throws IOException {
+        return repositoryManager_.writeBlob(repo, hfo, file, hash);
+    }
+
+    protected final File getBlobFile(final Repository repo,
+                                     final String hash) {
+        return repositoryManager_.getBlobFile(repo, hash);
+    }
+
+    protected final void releaseValue(final Repository repo,
+                                      final HashedFileObject hfo) {
+        repositoryManager_.releaseValue(repo, hfo);
+    }
+
+    protected final FileChannel openSegment(final Repository repo,
+                                            final SegmentPointer pointer) throws IOException {
+        return repositoryManager_.openSegment(repo, pointer);
+    }
+
     protected final HashedFileObject deleteHashedFileObject(final Repository repo,
                                                             final String key,
                                                             final String ifMatch) {
@@ -112,8 +268,69 @@ public abstract class HavaloApiController {
         return deleteHashedFileObject(id, key.getDecodedKey(), ifMatch);
     }
 
+    protected final void commitHashedFileObject(final Repository repo,
+                                                final HashedFileObject hfo) {
+        repositoryManager_.commitHashedFileObject(repo, hfo);
+    }
+
     protected final void flushRepository(final Repository repo) {
         repositoryManager_.flushRepository(repo);
     }
 
+    /**
+     * Returns true if the given request can be served with non-blocking
+     * (Servlet 3.1) I/O: the request must be async, and the container must
+     * support Servlet 3.1 or later.
+     */
+    protected static final boolean isNonBlockingIoSupported(final HttpServletRequest request) {
+        final ServletContext context = request.getServletContext();
+        final int major = context.getMajorVersion();
+        final int minor = context.getMinorVersion();
+        return request.isAsyncStarted() &&
+            (major > 3 || (major == 3 && minor >= 1));
+    }
+
+    /**
+     * Renders the given entity to the response.  Only needed once a request
+     * has left the controller method (e.g., once a non-blocking upload has
+     * finished); until then, returned entities are rendered by Curacao.
+     */
+    protected static final void renderEntity(final HttpServletResponse response,
+                                             final CuracaoEntity entity) throws Exception {
+        response.setStatus(entity.getStatus());
+        if(entity.getContentType() != null) {
+            response.setContentType(entity.getContentType());
+        }
+        try(final OutputStream os = response.getOutputStream()) {
+            entity.write(os);
+        }
+    }
+
+    /**
+     * Renders the status code matching the given failure to the response,
+     * following the same rules as the exception mappers.
+     */
+    protected static final void renderFailure(final HttpServletResponse response,
+                                              final Throwable t) {
+        final int status;
+        if(t instanceof HavaloException) {
+            status = ((HavaloException)t).getStatus();
+        } else if(t instanceof LockConflictException) {
+            status = SC_CONFLICT;
+        } else if(t instanceof IllegalArgumentException) {
+            status = SC_BAD_REQUEST;
+        } else {
+            status = SC_INTERNAL_SERVER_ERROR;
+        }
+        if(status == SC_INTERNAL_SERVER_ERROR) {
+            logger__.error("Failed to complete request.", t);
+        } else {
+            logger__.debug("Failed to complete request (status=" + status + ")", t);
+        }
+        if(!response.isCommitted()) {
+            response.reset();
+            response.setStatus(status);
+        }
+    }
+
 }
@@ -33,8 +33,12 @@ import curacao.mappers.request.matchers.CuracaoAntPathMatcher;
 import com.kolich.havalo.components.RepositoryManagerComponent;
 import com.kolich.havalo.controllers.HavaloApiController;
 import com.kolich.havalo.entities.types.KeyPair;
+import com.kolich.havalo.entities.types.Repository;
 import com.kolich.havalo.filters.HavaloAuthenticationFilter;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+
 import static curacao.annotations.RequestMapping.Method.POST;
 
 @Controller
@@ -49,11 +53,20 @@ public class AuthenticateApi extends HavaloApiController {
                     value="/api/authenticate",
                     matcher=CuracaoAntPathMatcher.class,
                     filters=HavaloAuthenticationFilter.class)
-    public final KeyPair authenticate(final KeyPair userKp) {
-        // A bit redundant, but the call to getRepository() here just
-        // verifies that the user account exists ~and~ the corresponding
-        // repository exists in the system as well.
-        return getRepository(userKp.getKey()).getKeyPair();
+    public final void authenticate(final KeyPair userKp,
+                                   final HttpServletResponse response,
+                                   final AsyncContext context) throws Exception {
+        // A bit redundant, but loading the repository here just verifies
+        // that the user account exists ~and~ the corresponding repository
+        // exists in the system as well.
+        withRepository(userKp.getKey(), response, context,
+            new RepositoryCallback() {
+            @Override
+            public void run(final Repository repo) throws Exception {
+                renderEntity(response, repo.getKeyPair());
+                context.complete();
+            }
+        });
     }
 
 }
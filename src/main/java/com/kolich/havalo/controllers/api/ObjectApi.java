@@ -27,14 +27,12 @@
 package com.kolich.havalo.controllers.api;
 
 import com.kolich.bolt.ReentrantReadWriteEntityLock;
-import com.kolich.common.util.secure.KolichChecksum;
 import curacao.annotations.Controller;
 import curacao.annotations.Injectable;
 import curacao.annotations.RequestMapping;
 import curacao.annotations.parameters.convenience.ContentLength;
 import curacao.annotations.parameters.convenience.ContentType;
 import curacao.annotations.parameters.convenience.IfMatch;
-import curacao.entities.CuracaoEntity;
 import curacao.entities.empty.StatusCodeOnlyCuracaoEntity;
 import curacao.mappers.request.matchers.CuracaoAntPathMatcher;
 import com.kolich.havalo.components.RepositoryManagerComponent;
@@ -43,18 +41,22 @@ import com.kolich.havalo.entities.types.DiskObject;
 import com.kolich.havalo.entities.types.HashedFileObject;
 import com.kolich.havalo.entities.types.KeyPair;
 import com.kolich.havalo.entities.types.Repository;
+import com.kolich.havalo.entities.types.SegmentPointer;
 import com.kolich.havalo.exceptions.objects.ObjectConflictException;
 import com.kolich.havalo.exceptions.objects.ObjectLengthNotSpecifiedException;
 import com.kolich.havalo.exceptions.objects.ObjectNotFoundException;
 import com.kolich.havalo.exceptions.objects.ObjectTooLargeException;
 import com.kolich.havalo.filters.HavaloAuthenticationFilter;
+import com.kolich.havalo.io.ByteRange;
+import com.kolich.havalo.io.ObjectDownload;
+import com.kolich.havalo.io.ObjectUpload;
 import com.kolich.havalo.mappers.ObjectKeyArgumentMapper.ObjectKey;
-import org.slf4j.Logger;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -63,27 +65,69 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.io.Files.move;
 import static com.google.common.net.HttpHeaders.*;
 import static com.google.common.net.MediaType.OCTET_STREAM;
-import static com.kolich.common.util.secure.KolichChecksum.getSHA1HashAndCopy;
 import static curacao.annotations.RequestMapping.Method.*;
 import static com.kolich.havalo.HavaloConfigurationFactory.getMaxUploadSize;
+import static com.kolich.havalo.HavaloConfigurationFactory.getNonBlockingIo;
+import static com.kolich.havalo.HavaloConfigurationFactory.getVerifyHead;
+import static com.kolich.havalo.io.ByteRange.toUnsatisfiedContentRange;
+import static java.io.File.createTempFile;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.UUID.randomUUID;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static javax.servlet.http.HttpServletResponse.SC_NO_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.commons.io.FileUtils.deleteQuietly;
-import static org.apache.commons.io.IOUtils.copyLarge;
-import static org.slf4j.LoggerFactory.getLogger;
+import static org.apache.commons.io.FileUtils.forceMkdir;
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.apache.commons.io.IOUtils.closeQuietly;
 
 @Controller
 public class ObjectApi extends HavaloApiController {
 
-    private static final Logger logger__ = getLogger(ObjectApi.class);
-
     private static final String OCTET_STREAM_TYPE = OCTET_STREAM.toString();
+    private static final String MULTIPART_BYTERANGES_TYPE = "multipart/byteranges";
+
+    private static final String BYTES_RANGE_UNIT = "bytes";
+    private static final String NO_RANGE_UNIT = "none";
+
+    private static final String GZIP_ENCODING = "gzip";
+    private static final String X_GZIP_ENCODING = "x-gzip";
+    private static final String ANY_ENCODING = "*";
+
+    /**
+     * Objects smaller than this are never worth compressing; the gzip
+     * header and trailer alone are 18-bytes.
+     */
+    private static final long MIN_COMPRESSED_OBJECT_SIZE = 1024L;
+
+    /**
+     * Content types that are compressed already, or otherwise don't
+     * compress well, by prefix.
+     */
+    private static final String[] INCOMPRESSIBLE_TYPES = {
+        "image/", "video/", "audio/",
+        "application/zip", "application/gzip", "application/x-gzip",
+        "application/x-bzip2", "application/x-xz", "application/x-7z-compressed",
+        "application/x-rar-compressed"
+    };
+
+    private static final String WEAK_ETAG_PREFIX = "W/";
+
+    private static final String TEMP_UPLOAD_PREFIX = "upload-";
+    private static final String TEMP_UPLOAD_SUFFIX = ".tmp";
 
     private final long uploadMaxSize_;
+    private final boolean nonBlockingIo_;
+    private final boolean verifyHead_;
 
     @Injectable
     public ObjectApi(final RepositoryManagerComponent component) {
         super(component.getRepositoryManager());
         uploadMaxSize_ = getMaxUploadSize();
+        nonBlockingIo_ = getNonBlockingIo();
+        verifyHead_ = getVerifyHead();
     }
 
     @RequestMapping(methods=HEAD,
@@ -92,32 +136,47 @@ public class ObjectApi extends HavaloApiController {
                     filters=HavaloAuthenticationFilter.class)
     public final void head(final ObjectKey key,
                            final KeyPair userKp,
+                           final HttpServletRequest request,
                            final HttpServletResponse response,
                            final AsyncContext context) throws Exception {
-        final Repository repo = getRepository(userKp.getKey());
-        new ReentrantReadWriteEntityLock<Void>(repo) {
+        withRepository(userKp.getKey(), response, context,
+            new RepositoryCallback() {
             @Override
-            public Void transaction() throws Exception {
-                final HashedFileObject hfo = getHashedFileObject(repo,
-                    // The URL-decoded key of the object to delete.
-                    key,
-                    // Fail if not found.
-                    true);
-                new ReentrantReadWriteEntityLock<HashedFileObject>(hfo) {
+            public void run(final Repository repo) throws Exception {
+                new ReentrantReadWriteEntityLock<Void>(repo) {
                     @Override
-                    public HashedFileObject transaction() throws Exception {
-                        final DiskObject object = getCanonicalObject(repo, hfo);
-                        streamHeaders(object, hfo, response);
-                        return hfo;
+                    public Void transaction() throws Exception {
+                        final HashedFileObject hfo = getHashedFileObject(repo,
+                            // The URL-decoded key of the object to delete.
+                            key,
+                            // Fail if not found.
+                            true);
+                        new ReentrantReadWriteEntityLock<HashedFileObject>(hfo) {
+                            @Override
+                            public HashedFileObject transaction() throws Exception {
+                                // Answer cache revalidations from the meta data
+                                // alone, without touching the object on disk.
+                                if(isNotModified(request, hfo)) {
+                                    sendNotModified(hfo, response);
+                                    return hfo;
+                                }
+                                // The same representation a GET would send.
+                                final boolean encoded = isGzipEncoded(hfo);
+                                final boolean inflate = encoded && !acceptsGzip(request);
+                                streamHeaders(hfo, getContentLength(repo, hfo,
+                                    encoded && !inflate), encoded, inflate, response);
+                                return hfo;
+                            }
+                        }.read(); // Shared read lock on file object
+                        return null;
                     }
-                }.read(); // Shared read lock on file object
-                return null;
-            }
-            @Override
-            public void success(final Void v) throws Exception {
-                context.complete();
+                    @Override
+                    public void success(final Void v) throws Exception {
+                        context.complete();
+                    }
+                }.read(); // Shared read lock on repo
             }
-        }.read(); // Shared read lock on repo
+        });
     }
 
     @RequestMapping(methods=GET,
@@ -126,78 +185,173 @@ public class ObjectApi extends HavaloApiController {
                     filters=HavaloAuthenticationFilter.class)
     public final void get(final ObjectKey key,
                           final KeyPair userKp,
+                          final HttpServletRequest request,
                           final HttpServletResponse response,
                           final AsyncContext context) throws Exception {
-        final Repository repo = getRepository(userKp.getKey());
-        new ReentrantReadWriteEntityLock<Void>(repo) {
+        withRepository(userKp.getKey(), response, context,
+            new RepositoryCallback() {
             @Override
-            public Void transaction() throws Exception {
-                final HashedFileObject hfo = getHashedFileObject(repo,
-                    // The URL-decoded key of the object to delete.
-                    key,
-                    // Fail if not found.
-                    true);
-                new ReentrantReadWriteEntityLock<HashedFileObject>(hfo) {
+            public void run(final Repository repo) throws Exception {
+                new ReentrantReadWriteEntityLock<ObjectDownload>(repo) {
                     @Override
-                    public HashedFileObject transaction() throws Exception {
-                        final DiskObject object = getCanonicalObject(repo, hfo);
-                        // Validate that the object file exists on disk
-                        // before we attempt to load it.
-                        if(!object.getFile().exists()) {
-                            throw new ObjectNotFoundException("Failed " +
-                                "to find canonical object on disk " +
-                                "(key=" + key + ", file=" +
-                                object.getFile().getAbsolutePath() +
-                                ")");
+                    public ObjectDownload transaction() throws Exception {
+                        final HashedFileObject hfo = getHashedFileObject(repo,
+                            // The URL-decoded key of the object to delete.
+                            key,
+                            // Fail if not found.
+                            true);
+                        return new ReentrantReadWriteEntityLock<ObjectDownload>(hfo) {
+                            @Override
+                            public ObjectDownload transaction() throws Exception {
+                                // Answer cache revalidations from the meta data
+                                // alone, without touching the object on disk.
+                                if(isNotModified(request, hfo)) {
+                                    sendNotModified(hfo, response);
+                                    return null;
+                                }
+                                final ObjectDownload download = openDownload(repo, hfo);
+                                try {
+                                    // A gzip'ed object is sent as is to consumers
+                                    // that accept it, and inflated on the fly for
+                                    // everyone else.
+                                    final boolean encoded = isGzipEncoded(hfo);
+                                    if(encoded && !acceptsGzip(request)) {
+                                        streamHeaders(hfo, hfo.getContentLength(),
+                                            encoded, true, response);
+                                        return download.add(0L, download.getLength())
+                                            .inflate();
+                                    }
+                                    final long length = download.getLength();
+                                    streamHeaders(hfo, length, encoded, false, response);
+                                    // Byte ranges of a gzip'ed object aren't served,
+                                    // the ranges of either representation would share
+                                    // the same ETag.
+                                    final List<ByteRange> ranges = (encoded) ? null :
+                                        getRanges(request, hfo, length);
+                                    return prepareDownload(download, length, hfo,
+                                        ranges, response);
+                                } catch (Exception e) {
+                                    download.close();
+                                    throw e;
+                                }
+                            }
+                        }.read(); // Shared read lock on file object, wait
+                    }
+                    @Override
+                    public void success(final ObjectDownload download) throws Exception {
+                        if(download == null) {
+                            // Nothing to send (e.g., not modified, or no
+                            // satisfiable range).
+                            context.complete();
+                        } else if(nonBlockingIo_ && isNonBlockingIoSupported(request)) {
+                            download.sendAsync(response.getOutputStream(), context);
+                        } else {
+                            download.send(response.getOutputStream(), context);
                         }
-                        streamHeaders(object, hfo, response);
-                        streamObject(object, response);
-                        return hfo;
                     }
-                }.read(); // Shared read lock on file object, wait
-                return null;
-            }
-            @Override
-            public void success(final Void v) throws Exception {
-                context.complete();
+                }.read(false); // Shared read lock on repo, no wait
             }
-        }.read(false); // Shared read lock on repo, no wait
+        });
     }
 
     @RequestMapping(methods=PUT,
                     value="/api/object/{key}",
                     matcher=CuracaoAntPathMatcher.class,
                     filters=HavaloAuthenticationFilter.class)
-    public final HashedFileObject put(final ObjectKey key,
-                                      final KeyPair userKp,
-                                      @IfMatch final String ifMatch,
-                                      @ContentType final String contentType,
-                                      @ContentLength final Long contentLength,
-                                      final HttpServletRequest request,
-                                      final HttpServletResponse response) throws Exception {
-        final Repository repo = getRepository(userKp.getKey());
-        return new ReentrantReadWriteEntityLock<HashedFileObject>(repo) {
+    public final void put(final ObjectKey key,
+                          final KeyPair userKp,
+                          @IfMatch final String ifMatch,
+                          @ContentType final String contentType,
+                          @ContentLength final Long contentLength,
+                          final HttpServletRequest request,
+                          final HttpServletResponse response,
+                          final AsyncContext context) throws Exception {
+        // Havalo requires the consumer to send a Content-Length
+        // request header with the request when uploading an
+        // object.
+        if(contentLength < 0L) {
+            // A value of -1 indicates that no Content-Length
+            // header was set.  Bail gracefully.
+            throw new ObjectLengthNotSpecifiedException("Client " +
+                "sent request where '" + CONTENT_LENGTH +
+                "' header was not present or less than zero.");
+        }
+        // Only accept the object if the Content-Length of the
+        // incoming request is less than or equal to the max
+        // upload size.
+        if(contentLength > uploadMaxSize_) {
+            throw new ObjectTooLargeException("The '" +
+                CONTENT_LENGTH + "' of the incoming request " +
+                "is too large. Max upload size allowed is " +
+                uploadMaxSize_ + "-bytes.");
+        }
+        withRepository(userKp.getKey(), response, context,
+            new RepositoryCallback() {
             @Override
-            public HashedFileObject transaction() throws Exception {
-                // Havalo requires the consumer to send a Content-Length
-                // request header with the request when uploading an
-                // object.
-                if(contentLength < 0L) {
-                    // A value of -1 indicates that no Content-Length
-                    // header was set.  Bail gracefully.
-                    throw new ObjectLengthNotSpecifiedException("Client " +
-                        "sent request where '" + CONTENT_LENGTH +
-                        "' header was not present or less than zero.");
+            public void run(final Repository repo) throws Exception {
+                // The object is received into a temp file unique to this upload
+                // without holding any locks, such that a slow upload never blocks
+                // readers (or other writers) of the object.  The locks are only
+                // taken once the entire object was received, to move it into place.
+                // Small objects are received into memory instead, and stored inline
+                // or appended to a packed segment of the repository (or, with
+                // segments turned off and the inline budget spent, written to a
+                // file of their own on commit).
+                final File tempObjFile;
+                if(isInlined(contentLength) || isSegmented(contentLength)) {
+                    tempObjFile = null;
+                } else {
+                    final File repoDir = repo.getFile();
+                    forceMkdir(repoDir);
+                    tempObjFile = createTempFile(TEMP_UPLOAD_PREFIX,
+                        TEMP_UPLOAD_SUFFIX, repoDir);
                 }
-                // Only accept the object if the Content-Length of the
-                // incoming request is less than or equal to the max
-                // upload size.
-                if(contentLength > uploadMaxSize_) {
-                    throw new ObjectTooLargeException("The '" +
-                        CONTENT_LENGTH + "' of the incoming request " +
-                        "is too large. Max upload size allowed is " +
-                        uploadMaxSize_ + "-bytes.");
+                // Objects received into a temp file are gzip'ed along the way, if
+                // the repository asks for it and the object is worth compressing.
+                final boolean compress = tempObjFile != null &&
+                    repo.isCompressed() &&
+                    contentLength >= MIN_COMPRESSED_OBJECT_SIZE &&
+                    isCompressible(contentType);
+                final ObjectUpload upload = new ObjectUpload(tempObjFile, contentLength,
+                    compress) {
+                    @Override
+                    public void success(final String sha1) throws Exception {
+                        final HashedFileObject hfo = commitUpload(repo, key, ifMatch,
+                            contentType, tempObjFile, getValue(), sha1,
+                            getCompressedSha1(), contentLength);
+                        // Append an ETag header to the response for the
+                        // PUT'ed object.
+                        response.setHeader(ETAG, hfo.getFirstHeader(ETAG));
+                        renderEntity(response, hfo);
+                        context.complete();
+                    }
+                    @Override
+                    public void failure(final Throwable cause) {
+                        renderFailure(response, cause);
+                        context.complete();
+                    }
+                };
+                if(nonBlockingIo_ && isNonBlockingIoSupported(request)) {
+                    upload.receiveAsync(request.getInputStream());
+                } else {
+                    upload.receive(request.getInputStream());
                 }
+            }
+        });
+    }
+
+    private final HashedFileObject commitUpload(final Repository repo,
+                                                final ObjectKey key,
+                                                final String ifMatch,
+                                                final String contentType,
+                                                final File tempObjFile,
+                                                final byte[] value,
+                                                final String sha1,
+                                                final String gzipSha1,
+                                                final long length) throws Exception {
+        return new ReentrantReadWriteEntityLock<HashedFileObject>(repo) {
+            @Override
+            public HashedFileObject transaction() throws Exception {
                 final HashedFileObject hfo = getHashedFileObject(repo, key);
                 return new ReentrantReadWriteEntityLock<HashedFileObject>(hfo) {
                     @Override
@@ -220,68 +374,102 @@ public class ObjectApi extends HavaloApiController {
                                     ifMatch + ")");
                             }
                         }
-                        final DiskObject object = getCanonicalObject(
-                            repo, hfo,
-                            // Create the File on disk if it does not
-                            // already exist. Yay!
-                            true);
-                        // The file itself (should exist now).
-                        final File objFile = object.getFile();
-                        final File tempObjFile = object.getTempFile();
-                        try(final InputStream is = request.getInputStream();
-                            final OutputStream os = new FileOutputStream(tempObjFile);) {
-                            // Compute the ETag (an MD5 hash of the file) while
-                            // copying the file into place.  The bytes of the
-                            // input stream and piped into an MD5 digest _and_
-                            // to the output stream -- ideally computing the
-                            // hash and copying the file at the same time.
-                            // Set the resulting ETag header (meta data).
-                            hfo.setETag(getSHA1HashAndCopy(is, os,
-                                // Only copy as much as the incoming
-                                // Content-Length header sez is going
-                                // to be sent.  Anything more than this
-                                // is caught gracefully and dropped.
-                                contentLength));
-                            // Move the uploaded file into place (moves
-                            // the file from the temp location to the
-                            // real destination inside of the repository
-                            // on disk).
-                            move(tempObjFile, objFile);
-                            // Set the Last-Modified header (meta data).
-                            hfo.setLastModified(objFile.lastModified());
-                            // Set the Content-Length header (meta data).
-                            hfo.setContentLength(objFile.length());
-                            // Set the Content-Type header (meta data).
-                            if(contentType != null) {
-                                hfo.setContentType(contentType);
+                        // The file the object was received into, if any.
+                        File uploadFile = tempObjFile;
+                        // Store the small object inline if it fits the
+                        // inline budget of the repository, or append it
+                        // to the active packed segment of the repository
+                        // otherwise, dropping whatever the object held
+                        // before.  With packed segments turned off, it's
+                        // stored in a file like any other object instead.
+                        if(value != null && !writeInline(repo, hfo, value)) {
+                            if(isSegmented(value.length)) {
+                                writeSegment(repo, hfo, value);
+                            } else {
+                                forceMkdir(repo.getFile());
+                                uploadFile = createTempFile(TEMP_UPLOAD_PREFIX,
+                                    TEMP_UPLOAD_SUFFIX, repo.getFile());
+                                writeByteArrayToFile(uploadFile, value);
+                            }
+                        }
+                        try {
+                            if(uploadFile == null) {
+                                // Stored inline, or in a packed segment.
+                                // Set the Last-Modified header (meta data).
+                                hfo.setLastModified(currentTimeMillis());
+                                // Set the Content-Length header (meta data).
+                                hfo.setContentLength(value.length);
+                                // Never stored encoded.
+                                hfo.setStoredLength(-1L);
+                            } else if(isDeduplicated()) {
+                                // Point the object at the blob that holds its
+                                // content, which is only stored if the repository
+                                // doesn't hold an identical body already.  Blobs
+                                // are addressed by what's on disk, gzip'ed or not.
+                                final File blobFile = writeBlob(repo, hfo,
+                                    uploadFile, (gzipSha1 != null) ? gzipSha1 : sha1);
+                                // Set the Last-Modified header (meta data).
+                                hfo.setLastModified(currentTimeMillis());
+                                // Set the Content-Length header (meta data),
+                                // always the length of the decoded object.
+                                hfo.setContentLength((gzipSha1 != null) ? length :
+                                    blobFile.length());
+                                // The length on disk, if it differs, such that
+                                // requests never have to look it up.
+                                hfo.setStoredLength((gzipSha1 != null) ?
+                                    blobFile.length() : -1L);
+                            } else {
+                                final DiskObject object = getCanonicalObject(
+                                    repo, hfo,
+                                    // Create the File on disk if it does not
+                                    // already exist. Yay!
+                                    true);
+                                // The file itself (should exist now).
+                                final File objFile = object.getFile();
+                                // Move the uploaded file into place (moves
+                                // the file from the temp location to the
+                                // real destination inside of the repository
+                                // on disk).
+                                move(uploadFile, objFile);
+                                // The object may have been a small one, stored
+                                // inline or in a packed segment, until now.
+                                releaseValue(repo, hfo);
+                                // Set the Last-Modified header (meta data).
+                                hfo.setLastModified(objFile.lastModified());
+                                // Set the Content-Length header (meta data),
+                                // always the length of the decoded object.
+                                hfo.setContentLength((gzipSha1 != null) ? length :
+                                    objFile.length());
+                                // The length on disk, if it differs, such that
+                                // requests never have to look it up.
+                                hfo.setStoredLength((gzipSha1 != null) ?
+                                    objFile.length() : -1L);
                             }
-                        } catch (KolichChecksum.KolichChecksumException e) {
-                            // Quietly delete the object on disk when
-                            // it has exceeded the max upload size allowed
-                            // by this Havalo instance.
-                            throw new ObjectTooLargeException("The " +
-                                "size of the incoming object is too " +
-                                "large. Max upload size is " +
-                                uploadMaxSize_ + "-bytes.", e);
                         } finally {
-                            // Delete the file from the temp upload
-                            // location.  Note, this file may not exist
-                            // if the upload was successful and the object
-                            // was moved into place.. which is OK here.
-                            deleteQuietly(tempObjFile);
+                            // The temp file is moved into place by now,
+                            // unless storing the object failed.
+                            if(uploadFile != null && uploadFile != tempObjFile) {
+                                deleteQuietly(uploadFile);
+                            }
                         }
-                        // Append an ETag header to the response for the
-                        // PUT'ed object.
-                        response.setHeader(ETAG, hfo.getFirstHeader(ETAG));
+                        // Record how the object is stored on disk, which
+                        // may differ from how it was stored before.
+                        hfo.setContentEncoding((gzipSha1 != null) ?
+                            GZIP_ENCODING : null);
+                        // Set the ETag header, the SHA-1 hash of the
+                        // object computed while it was received (meta data).
+                        hfo.setETag(sha1);
+                        // Set the Content-Type header (meta data).
+                        if(contentType != null) {
+                            hfo.setContentType(contentType);
+                        }
+                        // Record the new state of the object in the
+                        // repository log while we still hold the exclusive
+                        // lock on it, so that records for the same key are
+                        // always logged in the order they happened.
+                        commitHashedFileObject(repo, hfo);
                         return hfo;
                     }
-                    @Override
-                    public void success(final HashedFileObject e) throws Exception {
-                        // On success only, ask the repo manager to
-                        // asynchronously flush this repository's meta
-                        // data to disk.
-                        flushRepository(repo);
-                    }
                 }.write(); // Exclusive lock on this HFO, no wait
             }
         }.read(false); // Shared read lock on repo, no wait
@@ -291,42 +479,121 @@ public class ObjectApi extends HavaloApiController {
                     value="/api/object/{key}",
                     matcher=CuracaoAntPathMatcher.class,
                     filters=HavaloAuthenticationFilter.class)
-    public final CuracaoEntity delete(final ObjectKey key,
-                                      @IfMatch final String ifMatch,
-                                      final KeyPair userKp) throws Exception {
-        // The delete operation does return a pointer to the "deleted"
-        // HFO, but we're not using it, we're just dropping it on the
-        // floor (intentionally not returning it to the caller).
-        deleteHashedFileObject(userKp.getKey(),
-            // The URL-decoded key of the object to delete.
-            key,
-            // Only delete the object if the provided ETag via the
-            // If-Match header matches the object on disk.
-            ifMatch);
-        return new StatusCodeOnlyCuracaoEntity(SC_NO_CONTENT);
+    public final void delete(final ObjectKey key,
+                             @IfMatch final String ifMatch,
+                             final KeyPair userKp,
+                             final HttpServletResponse response,
+                             final AsyncContext context) throws Exception {
+        withRepository(userKp.getKey(), response, context,
+            new RepositoryCallback() {
+            @Override
+            public void run(final Repository repo) throws Exception {
+                // The delete operation does return a pointer to the "deleted"
+                // HFO, but we're not using it, we're just dropping it on the
+                // floor (intentionally not returning it to the caller).
+                deleteHashedFileObject(repo,
+                    // The URL-decoded key of the object to delete.
+                    key,
+                    // Only delete the object if the provided ETag via the
+                    // If-Match header matches the object on disk.
+                    ifMatch);
+                renderEntity(response,
+                    new StatusCodeOnlyCuracaoEntity(SC_NO_CONTENT));
+                context.complete();
+            }
+        });
     }
 
-    private static final void streamHeaders(final DiskObject object,
-                                            final HashedFileObject hfo,
-                                            final HttpServletResponse response) {
-        checkNotNull(hfo, "Hashed file object cannot be null.");
-        // Validate that the File object still exists.
-        if(!object.getFile().exists()) {
+    /**
+     * Returns the length of the object for a HEAD request: straight from
+     * the meta data of the object, such that a HEAD never touches the
+     * object on disk.  Unless HEAD requests are verified (or the meta data
+     * has no length), in which case the object file on disk must exist, and
+     * its length is returned.  The length of a gzip'ed object, as stored,
+     * is in its meta data as well, unless it was stored before that length
+     * was recorded.
+     */
+    private final long getContentLength(final Repository repo,
+                                        final HashedFileObject hfo,
+                                        final boolean stored) throws IOException {
+        final long length = hfo.getContentLength();
+        if(!verifyHead_) {
+            // Known from the meta data alone, unless the object was stored
+            // before its length on disk was recorded.
+            final long known = (stored) ? hfo.getStoredLength() : length;
+            if(known >= 0L) {
+                return known;
+            }
+        }
+        final long storedLength = getStoredLength(repo, hfo);
+        // The meta data holds the decoded length of a gzip'ed object.
+        return (length >= 0L && !stored && isGzipEncoded(hfo)) ? length :
+            storedLength;
+    }
+
+    private final long getStoredLength(final Repository repo,
+                                       final HashedFileObject hfo) throws IOException {
+        // Objects stored inline, or in a packed segment, have no file of
+        // their own.
+        final byte[] value = hfo.getValue();
+        if(value != null) {
+            return value.length;
+        }
+        final SegmentPointer segment = hfo.getSegment();
+        if(segment != null) {
+            return segment.getLength();
+        }
+        final String blob = hfo.getBlob();
+        if(blob != null) {
+            final File blobFile = getBlobFile(repo, blob);
+            if(!blobFile.exists()) {
+                throw new ObjectNotFoundException("Object blob not " +
+                    "found (file=" + blobFile.getAbsolutePath() +
+                    ", key=" + hfo.getName() + ")");
+            }
+            return blobFile.length();
+        }
+        final File file = getCanonicalObject(repo, hfo).getFile();
+        // Validate that the File object still exists (possibly after moving
+        // it to the configured object layout).
+        if(!file.exists() && !migrateObject(repo, hfo)) {
             throw new ObjectNotFoundException("Object not " +
-                "found (file=" + object.getFile().getAbsolutePath() +
+                "found (file=" + file.getAbsolutePath() +
                 ", key=" + hfo.getName() + ")");
         }
+        return file.length();
+    }
+
+    private static final void streamHeaders(final HashedFileObject hfo,
+                                            final long contentLength,
+                                            final boolean encoded,
+                                            final boolean inflated,
+                                            final HttpServletResponse response) {
+        checkNotNull(hfo, "Hashed file object cannot be null.");
         // Extract any response headers from this objects' meta data.
         final Map<String,List<String>> headers = hfo.getHeaders();
-        // Always set the Content-Length header to the actual length of the
-        // file on disk -- effectively overriding any "Content-Length" meta
-        // data header set by the user in the PUT request.
-        headers.put(CONTENT_LENGTH, Arrays.asList(Long.toString(object.getFile().length())));
+        // An object inflated on the fly is sent without any encoding.
+        if(inflated) {
+            headers.remove(CONTENT_ENCODING);
+        }
+        // Which representation of a gzip'ed object is sent depends on the
+        // Accept-Encoding of the consumer, caches need to know.
+        if(encoded) {
+            headers.put(VARY, Arrays.asList(ACCEPT_ENCODING));
+        }
+        // Always set the Content-Length header to the given length --
+        // effectively overriding any "Content-Length" meta data header set
+        // by the user in the PUT request.
+        headers.put(CONTENT_LENGTH, Arrays.asList(Long.toString(contentLength)));
         // Set the Content-Type header to a default if one was not set by
         // the consumer in the meta data.
         if(headers.get(CONTENT_TYPE) == null) {
             headers.put(CONTENT_TYPE, Arrays.asList(OCTET_STREAM_TYPE));
         }
+        // Let consumers know they can ask for byte ranges of the object,
+        // unless it's gzip'ed.
+        headers.put(ACCEPT_RANGES, Arrays.asList((encoded) ? NO_RANGE_UNIT :
+            BYTES_RANGE_UNIT));
         // Now, send all headers to the response stream.
         for(final Map.Entry<String,List<String>> entry : headers.entrySet()) {
             final String key = entry.getKey();
@@ -336,18 +603,267 @@ public class ObjectApi extends HavaloApiController {
         }
     }
 
-    private static final void streamObject(final DiskObject object,
-                                           final HttpServletResponse response) {
-        try(final InputStream is = new FileInputStream(object.getFile());
-            final OutputStream os = response.getOutputStream()) {
-            copyLarge(is, os);
-        } catch (Exception e) {
-            // On any Exception case, just log the failure and move on.
-            // We're closing the output stream in the finally{} block below
-            // so it's not like we can fail here then somehow return an error
-            // message to the API consumer.  We're handling this as gracefully
-            // as best we can.
-            logger__.error("Failed to stream object to client.", e);
+    private static final boolean isGzipEncoded(final HashedFileObject hfo) {
+        return GZIP_ENCODING.equals(hfo.getContentEncoding());
+    }
+
+    /**
+     * Returns true if an object of the given Content-Type is worth
+     * compressing; objects without a Content-Type are given the benefit
+     * of the doubt.
+     */
+    private static final boolean isCompressible(final String contentType) {
+        if(contentType == null) {
+            return true;
+        }
+        final String type = contentType.trim().toLowerCase();
+        for(final String incompressible : INCOMPRESSIBLE_TYPES) {
+            if(type.startsWith(incompressible)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the Accept-Encoding request header of the consumer
+     * (RFC 7231, section 5.3.4) lists gzip, or any encoding, with a
+     * non-zero quality value.
+     */
+    private static final boolean acceptsGzip(final HttpServletRequest request) {
+        final String acceptEncoding = request.getHeader(ACCEPT_ENCODING);
+        if(acceptEncoding == null) {
+            return false;
+        }
+        for(final String element : acceptEncoding.split(",")) {
+            final String[] params = element.split(";");
+            final String coding = params[0].trim().toLowerCase();
+            if(!GZIP_ENCODING.equals(coding) &&
+                !X_GZIP_ENCODING.equals(coding) &&
+                !ANY_ENCODING.equals(coding)) {
+                continue;
+            }
+            float quality = 1.0f;
+            for(int i = 1; i < params.length; i++) {
+                final String param = params[i].trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0.0f;
+                    }
+                }
+            }
+            if(quality > 0.0f) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates the If-None-Match and If-Modified-Since preconditions of a
+     * GET or HEAD request (RFC 7232, section 6) against the meta data of
+     * the object.  Returns true if the consumer's copy of the object is
+     * still current.
+     */
+    private static final boolean isNotModified(final HttpServletRequest request,
+                                               final HashedFileObject hfo) {
+        final String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        if(ifNoneMatch != null) {
+            // When present, If-None-Match takes precedence and the
+            // If-Modified-Since header is ignored.
+            return matchesAnyETag(ifNoneMatch, hfo.getFirstHeader(ETAG));
+        }
+        final long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader(IF_MODIFIED_SINCE);
+        } catch (IllegalArgumentException e) {
+            // Not a valid HTTP date, ignore it.
+            return false;
+        }
+        final long lastModified = hfo.getLastModified();
+        // HTTP dates have a resolution of one second.
+        return ifModifiedSince >= 0L && lastModified >= 0L &&
+            lastModified / 1000L <= ifModifiedSince / 1000L;
+    }
+
+    /**
+     * Weak comparison (RFC 7232, section 2.3.2) of the entity tags listed
+     * in an If-None-Match header against the ETag of the object.
+     */
+    private static final boolean matchesAnyETag(final String header,
+                                                final String eTag) {
+        if(header.trim().equals("*")) {
+            return true;
+        } else if(eTag == null) {
+            return false;
+        }
+        final String opaqueTag = stripWeakPrefix(eTag);
+        for(final String candidate : header.split(",")) {
+            if(opaqueTag.equals(stripWeakPrefix(candidate.trim()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final String stripWeakPrefix(final String eTag) {
+        return (eTag.startsWith(WEAK_ETAG_PREFIX)) ?
+            eTag.substring(WEAK_ETAG_PREFIX.length()) : eTag;
+    }
+
+    private static final void sendNotModified(final HashedFileObject hfo,
+                                              final HttpServletResponse response) {
+        response.setStatus(SC_NOT_MODIFIED);
+        // The validators a 304 response must carry (RFC 7232, section 4.1).
+        for(final String header : new String[]{ETAG, LAST_MODIFIED}) {
+            final String value = hfo.getFirstHeader(header);
+            if(value != null) {
+                response.setHeader(header, value);
+            }
+        }
+    }
+
+    /**
+     * Returns the byte ranges of the object the consumer asked for, an
+     * empty list if none of them can be satisfied, or null if the entire
+     * object should be sent.
+     */
+    private static final List<ByteRange> getRanges(final HttpServletRequest request,
+                                                   final HashedFileObject hfo,
+                                                   final long length) {
+        final String range = request.getHeader(RANGE);
+        if(range == null) {
+            return null;
+        }
+        // An If-Range carries the ETag, or Last-Modified date, of the copy
+        // of the object the consumer already has part of.  If the object
+        // changed since, the consumer needs all of it, not just a range.
+        final String ifRange = request.getHeader(IF_RANGE);
+        if(ifRange != null &&
+            !ifRange.equals(hfo.getFirstHeader(ETAG)) &&
+            !ifRange.equals(hfo.getFirstHeader(LAST_MODIFIED))) {
+            return null;
+        }
+        return ByteRange.parse(range, length);
+    }
+
+    /**
+     * Sets the status and headers of a response for the given ranges of
+     * the object, and returns the download that sends its body, or null
+     * if there's no body to send, in which case the given download is
+     * released.
+     */
+    private static final ObjectDownload prepareDownload(final ObjectDownload download,
+                                                        final long length,
+                                                        final HashedFileObject hfo,
+                                                        final List<ByteRange> ranges,
+                                                        final HttpServletResponse response) {
+        if(ranges == null) {
+            return download.add(0L, length);
+        } else if(ranges.isEmpty()) {
+            download.close();
+            response.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(CONTENT_RANGE, toUnsatisfiedContentRange(length));
+            response.setHeader(CONTENT_LENGTH, "0");
+            return null;
+        }
+        response.setStatus(SC_PARTIAL_CONTENT);
+        if(ranges.size() == 1) {
+            final ByteRange range = ranges.get(0);
+            response.setHeader(CONTENT_RANGE, range.toContentRange(length));
+            response.setHeader(CONTENT_LENGTH, Long.toString(range.getLength()));
+            return download.add(range.getFirst(), range.getLength());
+        }
+        // More than one range, each is sent as its own part of a
+        // "multipart/byteranges" body (RFC 7233, Appendix A).
+        final String contentType = (hfo.getFirstHeader(CONTENT_TYPE) != null) ?
+            hfo.getFirstHeader(CONTENT_TYPE) : OCTET_STREAM_TYPE;
+        final String boundary = randomUUID().toString().replace("-", "");
+        long contentLength = 0L;
+        for(final ByteRange range : ranges) {
+            final byte[] partHeader = String.format("\r\n--%s\r\n%s: %s\r\n%s: %s\r\n\r\n",
+                boundary, CONTENT_TYPE, contentType, CONTENT_RANGE,
+                range.toContentRange(length)).getBytes(US_ASCII);
+            download.add(partHeader).add(range.getFirst(), range.getLength());
+            contentLength += partHeader.length + range.getLength();
+        }
+        final byte[] closeDelimiter = String.format("\r\n--%s--\r\n",
+            boundary).getBytes(US_ASCII);
+        download.add(closeDelimiter);
+        contentLength += closeDelimiter.length;
+        response.setHeader(CONTENT_TYPE, MULTIPART_BYTERANGES_TYPE + "; boundary=" + boundary);
+        response.setHeader(CONTENT_LENGTH, Long.toString(contentLength));
+        return download;
+    }
+
+    /**
+     * Opens the download of the given object while the object is locked;
+     * the body is sent after the locks are released.  Objects stored inline
+     * are sent from memory.  Otherwise, the object file (or the packed
+     * segment, or blob, it's stored in) is opened: a PUT moves a new file
+     * into place, or appends to a segment, so the open file keeps reading
+     * the object as it was when the headers were sent.  The length of the open file is
+     * the length of what will be sent, regardless of what the meta data
+     * says.
+     */
+    private final ObjectDownload openDownload(final Repository repo,
+                                              final HashedFileObject hfo) throws IOException {
+        final byte[] value = hfo.getValue();
+        if(value != null) {
+            return new ObjectDownload(value);
+        }
+        final SegmentPointer segment = hfo.getSegment();
+        if(segment != null) {
+            return new ObjectDownload(openSegment(repo, segment),
+                segment.getOffset(), segment.getLength());
+        }
+        final String blob = hfo.getBlob();
+        final FileChannel channel = (blob != null) ?
+            openBlob(repo, hfo, blob) :
+            openChannel(repo, hfo, getCanonicalObject(repo, hfo));
+        try {
+            return new ObjectDownload(channel, 0L, channel.size());
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private final FileChannel openBlob(final Repository repo,
+                                       final HashedFileObject hfo,
+                                       final String blob) throws IOException {
+        final File blobFile = getBlobFile(repo, blob);
+        try {
+            return new FileInputStream(blobFile).getChannel();
+        } catch (FileNotFoundException e) {
+            throw new ObjectNotFoundException("Failed " +
+                "to find object blob on disk " +
+                "(key=" + hfo.getName() + ", file=" +
+                blobFile.getAbsolutePath() + ")", e);
+        }
+    }
+
+    private final FileChannel openChannel(final Repository repo,
+                                          final HashedFileObject hfo,
+                                          final DiskObject object) throws IOException {
+        try {
+            try {
+                return new FileInputStream(object.getFile()).getChannel();
+            } catch (FileNotFoundException e) {
+                // The object may not have been moved to the configured
+                // object layout yet; if so, move it and try again.
+                if(!migrateObject(repo, hfo)) {
+                    throw e;
+                }
+                return new FileInputStream(object.getFile()).getChannel();
+            }
+        } catch (FileNotFoundException e) {
+            throw new ObjectNotFoundException("Failed " +
+                "to find canonical object on disk " +
+                "(key=" + object.getName() + ", file=" +
+                object.getFile().getAbsolutePath() + ")", e);
         }
     }
 
@@ -38,14 +38,20 @@ import com.kolich.havalo.components.RepositoryManagerComponent;
 import com.kolich.havalo.controllers.HavaloApiController;
 import com.kolich.havalo.entities.types.HavaloUUID;
 import com.kolich.havalo.entities.types.KeyPair;
-import com.kolich.havalo.entities.types.ObjectList;
+import com.kolich.havalo.entities.types.ObjectListing;
 import com.kolich.havalo.entities.types.Repository;
 import com.kolich.havalo.exceptions.repositories.RepositoryForbiddenException;
 import com.kolich.havalo.filters.HavaloAuthenticationFilter;
 import com.kolich.havalo.mappers.ObjectKeyArgumentMapper.ObjectKey;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+
 import static curacao.annotations.RequestMapping.Method.*;
 import static com.kolich.havalo.HavaloConfigurationFactory.getHavaloAdminUUID;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.Boolean.parseBoolean;
+import static java.lang.Integer.parseInt;
 import static javax.servlet.http.HttpServletResponse.SC_NO_CONTENT;
 
 @Controller
@@ -63,25 +69,51 @@ public class RepositoryApi extends HavaloApiController {
                     value="/api/repository",
                     matcher=CuracaoAntPathMatcher.class,
                     filters=HavaloAuthenticationFilter.class)
-    public final ObjectList get(@Query("startsWith") final String startsWith,
-                                final KeyPair userKp) throws Exception {
-        final Repository repo = getRepository(userKp.getKey());
-        return new ReentrantReadWriteEntityLock<ObjectList>(repo) {
+    public final void get(@Query("startsWith") final String startsWith,
+                          @Query("marker") final String marker,
+                          @Query("limit") final String limit,
+                          @Query("delimiter") final String delimiter,
+                          final KeyPair userKp,
+                          final HttpServletResponse response,
+                          final AsyncContext context) throws Exception {
+        // No limit means the entire listing, streamed as a single page.
+        // A malformed limit is an IllegalArgumentException, which maps
+        // to a 400 Bad Request.
+        final int pageSize = (limit != null) ? parseInt(limit) :
+            Integer.MAX_VALUE;
+        checkArgument(pageSize > 0, "Limit must be greater than zero, " +
+            "was: " + pageSize);
+        // Often the first request against a repository, which is loaded
+        // without holding on to the request thread if it's not loaded yet.
+        withRepository(userKp.getKey(), response, context,
+            new RepositoryCallback() {
             @Override
-            public ObjectList transaction() throws Exception {
-                return repo.startsWith((startsWith != null) ?
-                    // Only load objects that start with the given
-                    // prefix, if one was provided.
-                    startsWith : "");
+            public void run(final Repository repo) throws Exception {
+                final ObjectListing listing =
+                    new ReentrantReadWriteEntityLock<ObjectListing>(repo) {
+                    @Override
+                    public ObjectListing transaction() throws Exception {
+                        // The lock is only held long enough to start the
+                        // listing; the index is walked, without any lock, as
+                        // the listing is streamed to the client.
+                        return new ObjectListing(repo.iterator((startsWith != null) ?
+                            // Only list objects that start with the given
+                            // prefix, if one was provided.
+                            startsWith : "", marker, delimiter), pageSize);
+                    }
+                }.read(false); // Shared read lock on repo, no wait
+                renderEntity(response, listing);
+                context.complete();
             }
-        }.read(false); // Shared read lock on repo, no wait
+        });
     }
 
     @RequestMapping(methods=POST,
                     value="/api/repository",
                     matcher=CuracaoAntPathMatcher.class,
                     filters=HavaloAuthenticationFilter.class)
-    public final KeyPair post(final KeyPair userKp) {
+    public final KeyPair post(@Query("compress") final String compress,
+                              final KeyPair userKp) {
         // Only admin level users have the right to delete repositories.
         if(!userKp.isAdmin()) {
             throw new RepositoryForbiddenException("Authenticated " +
@@ -98,10 +130,44 @@ public class RepositoryApi extends HavaloApiController {
         // Create a base repository for the new access key.  All of
         // the resources associated with this access key will sit
         // under this base repository (some directory on disk).
-        createRepository(kp.getKey(), kp);
+        // Optionally, gzip the bodies of objects in this repository on
+        // disk as they are written.
+        createRepository(kp.getKey(), kp, parseBoolean(compress));
         return kp;
     }
 
+    @RequestMapping(methods=PUT,
+                    value="/api/repository/{key}",
+                    matcher=CuracaoAntPathMatcher.class,
+                    filters=HavaloAuthenticationFilter.class)
+    public final void put(final ObjectKey key,
+                          @Query("compress") final String compress,
+                          final KeyPair userKp,
+                          final HttpServletResponse response,
+                          final AsyncContext context) throws Exception {
+        // Only admin level users have the right to change repositories.
+        if(!userKp.isAdmin()) {
+            throw new RepositoryForbiddenException("Authenticated " +
+                "user does not have permission to update repositories: " +
+                "(userId=" + userKp.getKey() + ", repoId=" + key + ")");
+        }
+        checkArgument(compress != null, "Missing required 'compress' " +
+            "query parameter.");
+        withRepository(new HavaloUUID(key.getDecodedKey()), response, context,
+            new RepositoryCallback() {
+            @Override
+            public void run(final Repository repo) throws Exception {
+                // Only affects objects written from here on out; existing
+                // objects are served in whatever encoding they were stored
+                // with.
+                setRepositoryCompressed(repo, parseBoolean(compress));
+                renderEntity(response,
+                    new StatusCodeOnlyCuracaoEntity(SC_NO_CONTENT));
+                context.complete();
+            }
+        });
+    }
+
     @RequestMapping(methods=DELETE,
                     value="/api/repository/{key}",
                     matcher=CuracaoAntPathMatcher.class,
@@ -35,13 +35,13 @@ import com.kolich.havalo.entities.types.HashedFileObject;
 import com.kolich.havalo.entities.types.HavaloError;
 import com.kolich.havalo.entities.types.HavaloUUID;
 import com.kolich.havalo.entities.types.Repository;
-import org.apache.commons.collections4.Trie;
 import org.slf4j.Logger;
 
 import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.ConcurrentNavigableMap;
 
 import static com.kolich.common.date.ISO8601DateFormat.getPrimaryFormat;
 import static java.util.TimeZone.getTimeZone;
@@ -78,8 +78,8 @@ public abstract class HavaloEntity extends GsonAppendableCuracaoEntity {
 			new KolichDefaultDateTypeAdapter(iso8601Format__));
 		builder.registerTypeAdapter(new TypeToken<File>(){}.getType(),
 			new Repository.FileTypeAdapter());
-		builder.registerTypeAdapter(new TypeToken<Trie<String, HashedFileObject>>(){}.getType(),
-			new Repository.TrieTypeAdapter());
+		builder.registerTypeAdapter(new TypeToken<ConcurrentNavigableMap<String, HashedFileObject>>(){}.getType(),
+			new Repository.IndexTypeAdapter());
 		builder.registerTypeAdapter(new TypeToken<Exception>(){}.getType(), 
 			new HavaloError.ExceptionTypeAdapter());
 		return builder;
@@ -31,6 +31,7 @@ import com.google.gson.annotations.SerializedName;
 import com.kolich.havalo.entities.HavaloFileEntity;
 
 import java.io.Serializable;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -46,6 +47,33 @@ public final class HashedFileObject extends HavaloFileEntity implements Serializ
 						
 	@SerializedName("headers")
 	private final Map<String,List<String>> headers_;
+	
+	/**
+	 * Where the value of this object lives if it's stored in a packed
+	 * segment of its repository, or null if it lives in its own file.
+	 * Internal, never sent to API consumers.
+	 */
+	private transient volatile SegmentPointer segment_;
+	
+	/**
+	 * The value of this object if it's small enough to be stored inline,
+	 * in memory, or null.  Internal, never sent to API consumers.
+	 */
+	private transient volatile byte[] value_;
+	
+	/**
+	 * The hex encoded SHA-1 hash of the content addressed blob that holds
+	 * the value of this object, or null.  Internal, never sent to API
+	 * consumers.
+	 */
+	private transient volatile String blob_;
+	
+	/**
+	 * The length of this object on disk, if it's stored encoded (e.g.,
+	 * gzip'ed) such that it differs from its Content-Length; or -1.
+	 * Internal, never sent to API consumers.
+	 */
+	private transient volatile long storedLength_ = -1L;
 		
 	public HashedFileObject(final String name, final Map<String,List<String>> headers) {
 		super(name);
@@ -73,6 +101,23 @@ public final class HashedFileObject extends HavaloFileEntity implements Serializ
 		return setHeader(LAST_MODIFIED, lastModified);
 	}
 	
+	/**
+	 * Returns the Last-Modified time of this entity, in milliseconds since
+	 * the epoch, or -1 if it has no (valid) Last-Modified header.
+	 * @return
+	 */
+	public long getLastModified() {
+		final String lastModified = getFirstHeader(LAST_MODIFIED);
+		if(lastModified == null) {
+			return -1L;
+		}
+		try {
+			return getNewInstance().parse(lastModified).getTime();
+		} catch (ParseException e) {
+			return -1L;
+		}
+	}
+	
 	public HashedFileObject setETag(final String eTag, final boolean quote) {
 		return setHeader(ETAG, (quote) ? String.format("\"%s\"", eTag) : eTag);
 	}
@@ -90,6 +135,74 @@ public final class HashedFileObject extends HavaloFileEntity implements Serializ
 		return setHeader(CONTENT_LENGTH, Long.toString(contentLength));
 	}
 	
+	public SegmentPointer getSegment() {
+		return segment_;
+	}
+	
+	public HashedFileObject setSegment(final SegmentPointer segment) {
+		segment_ = segment;
+		return this;
+	}
+	
+	public byte[] getValue() {
+		return value_;
+	}
+	
+	public HashedFileObject setValue(final byte[] value) {
+		value_ = value;
+		return this;
+	}
+	
+	public String getBlob() {
+		return blob_;
+	}
+	
+	public HashedFileObject setBlob(final String blob) {
+		blob_ = blob;
+		return this;
+	}
+	
+	public long getStoredLength() {
+		return storedLength_;
+	}
+	
+	public HashedFileObject setStoredLength(final long storedLength) {
+		storedLength_ = storedLength;
+		return this;
+	}
+	
+	/**
+	 * Returns the Content-Length of this entity, or -1 if it has no (valid)
+	 * Content-Length header.
+	 * @return
+	 */
+	public long getContentLength() {
+		final String contentLength = getFirstHeader(CONTENT_LENGTH);
+		if(contentLength == null) {
+			return -1L;
+		}
+		try {
+			return Long.parseLong(contentLength);
+		} catch (NumberFormatException e) {
+			return -1L;
+		}
+	}
+	
+	/**
+	 * Set the Content-Encoding of this entity, or remove it if null.
+	 */
+	public HashedFileObject setContentEncoding(final String contentEncoding) {
+		if(contentEncoding == null) {
+			headers_.remove(CONTENT_ENCODING);
+			return this;
+		}
+		return setHeader(CONTENT_ENCODING, contentEncoding);
+	}
+	
+	public String getContentEncoding() {
+		return getFirstHeader(CONTENT_ENCODING);
+	}
+	
 	/**
 	 * Set the Content-Type of this entity.
 	 */
@@ -98,18 +211,20 @@ public final class HashedFileObject extends HavaloFileEntity implements Serializ
 	}
 	
 	/**
-	 * Set the given, single header value under the given name.  If a header
-	 * already exists with the given name, the old value is overwritten.
+	 * Adds the given header value under the given name, after any values
+	 * that already exist under that name.
 	 * @param headerName
 	 * @param headerValue
 	 * @return
 	 */
 	public HashedFileObject addHeader(final String headerName,
 		final String headerValue) {
-		List<String> list = null;
-		if((list = headers_.get(headerName)) == null) {
-			list = new ArrayList<String>();
-		}
+		// Copy-on-write: a list of values is never modified once it's
+		// in the map, such that readers (e.g., a flush of the repository
+		// meta data) never see a list change underneath them.
+		final List<String> existing = headers_.get(headerName);
+		final List<String> list = (existing == null) ?
+			new ArrayList<String>() : new ArrayList<String>(existing);
 		list.add(headerValue);
 		headers_.put(headerName, list);
 		return this;
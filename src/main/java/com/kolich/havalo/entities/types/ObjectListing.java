@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.entities.types;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.net.MediaType.JSON_UTF_8;
+import static com.kolich.common.DefaultCharacterEncoding.UTF_8;
+import static com.kolich.havalo.entities.HavaloEntity.getHavaloGsonInstance;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import curacao.entities.CuracaoEntity;
+
+/**
+ * A single page of a listing of the objects in a repository, streamed
+ * to the client as JSON while the repository index is walked.  Only the
+ * object being written is ever held in memory, never the whole page.
+ * 
+ * If the listing was asked for with a delimiter, the common prefixes
+ * the objects were rolled up into are listed after the objects.  Both
+ * objects and common prefixes count towards the page limit, and only
+ * the common prefixes are held in memory until the end of the page.
+ * 
+ * If more entries follow the page, the listing is marked as truncated
+ * and carries the last key, or common prefix, in the page as the marker
+ * to ask for the next page with.
+ */
+public final class ObjectListing implements CuracaoEntity {
+	
+	private static final String JSON_UTF_8_TYPE = JSON_UTF_8.toString();
+	
+	private final Iterator<Map.Entry<String, HashedFileObject>> entries_;
+	private final int limit_;
+	
+	private final Gson gson_;
+	
+	/**
+	 * @param entries the objects to list, in key order, where an entry
+	 * with a null value is a common prefix
+	 * @param limit the max number of objects and common prefixes to list
+	 */
+	public ObjectListing(
+		final Iterator<Map.Entry<String, HashedFileObject>> entries,
+		final int limit) {
+		checkArgument(limit > 0, "Limit must be greater than zero, " +
+			"was: " + limit);
+		entries_ = checkNotNull(entries, "Entries cannot be null.");
+		limit_ = limit;
+		gson_ = getHavaloGsonInstance();
+	}
+	
+	@Override
+	public int getStatus() {
+		return SC_OK;
+	}
+	
+	@Override
+	public String getContentType() {
+		return JSON_UTF_8_TYPE;
+	}
+	
+	@Override
+	public void write(final OutputStream os) throws Exception {
+		final JsonWriter writer = new JsonWriter(new BufferedWriter(
+			new OutputStreamWriter(os, UTF_8)));
+		writer.beginObject();
+		writer.name("objects").beginArray();
+		final List<String> commonPrefixes = new ArrayList<String>();
+		String last = null;
+		int count = 0;
+		while(count < limit_ && entries_.hasNext()) {
+			final Map.Entry<String, HashedFileObject> entry = entries_.next();
+			if(entry.getValue() != null) {
+				gson_.toJson(entry.getValue(), HashedFileObject.class, writer);
+			} else {
+				commonPrefixes.add(entry.getKey());
+			}
+			last = entry.getKey();
+			++count;
+		}
+		writer.endArray();
+		writer.name("common_prefixes").beginArray();
+		for(final String commonPrefix : commonPrefixes) {
+			writer.value(commonPrefix);
+		}
+		writer.endArray();
+		final boolean truncated = entries_.hasNext();
+		writer.name("truncated").value(truncated);
+		writer.name("next_marker");
+		if(truncated) {
+			writer.value(last);
+		} else {
+			writer.nullValue();
+		}
+		writer.endObject();
+		writer.flush();
+	}
+	
+}
@@ -26,18 +26,25 @@
 
 package com.kolich.havalo.entities.types;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.gson.*;
 import com.google.gson.annotations.SerializedName;
 import com.kolich.havalo.entities.StoreableEntity;
-import org.apache.commons.collections4.Trie;
-import org.apache.commons.collections4.trie.PatriciaTrie;
 
 import java.io.File;
 import java.io.Serializable;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Maps.immutableEntry;
 
 public final class Repository extends StoreableEntity implements Serializable {
 	
@@ -52,14 +59,44 @@ public final class Repository extends StoreableEntity implements Serializable {
 	@SerializedName("key_pair")
 	private KeyPair keyPair_;
 	
+	/**
+	 * True if the bodies of new objects are gzip'ed on disk, where their
+	 * content type allows.
+	 */
+	@SerializedName("compressed")
+	private volatile boolean compressed_;
+	
+	/**
+	 * The object index, ordered by key.  Point lookups and updates never
+	 * block, and iteration is weakly consistent: it never fails, and
+	 * never blocks writers, but may or may not reflect changes made
+	 * while it's in progress.
+	 */
 	@SerializedName("objects")
-	private final Trie<String, HashedFileObject> objects_;
+	private final ConcurrentNavigableMap<String, HashedFileObject> objects_;
+	
+	/**
+	 * The total size, in bytes, of the values of the objects in the index
+	 * that are stored inline, in memory.
+	 */
+	private transient final AtomicLong inlineBytes_;
+	
+	/**
+	 * The number of objects in the index when this repository was last
+	 * weighed by the repository cache, and the number of objects added to
+	 * the index since.
+	 */
+	private transient volatile int weighedCount_;
+	private transient final AtomicInteger addedSinceWeighed_;
 	
 	public Repository(File repositoryDir, HavaloUUID repoId) {
 		super((repoId != null) ? repoId.toString() : null);
 		repositoryDir_ = repositoryDir;
 		repoId_ = repoId;
-		objects_ = new PatriciaTrie<>();
+		objects_ = new ConcurrentSkipListMap<>();
+		inlineBytes_ = new AtomicLong(0L);
+		weighedCount_ = 0;
+		addedSinceWeighed_ = new AtomicInteger(0);
 	}
 	
 	// For GSON
@@ -95,87 +132,202 @@ public final class Repository extends StoreableEntity implements Serializable {
 		return this;
 	}
 	
+	public boolean isCompressed() {
+		return compressed_;
+	}
+	
+	public Repository setCompressed(final boolean compressed) {
+		compressed_ = compressed;
+		return this;
+	}
+	
 	public Repository addObject(String key, HashedFileObject object) {
-		// Explicitly synchronized around the objects Trie such that no
-		// internal conflicts occur during GSON serialization (when GSON
-		// is serializing this object to JSON).  NOTE: The TrieTypeAdapter
-		// is also synchronized on the Trie to be serialized (such that no
-		// modifications are allowed to the Trie while it's being serialized).
-		// We are _not_ synchronizing around individual operations on the Trie
-		// (e.g., a single get, put, remove, etc.) but rather the entire Trie
-		// on each operation.
-		synchronized(objects_) {
-			objects_.put(key, object);
+		final HashedFileObject previous = objects_.put(key, object);
+		inlineBytes_.addAndGet(getInlineLength(object) -
+			getInlineLength(previous));
+		if(previous == null) {
+			addedSinceWeighed_.incrementAndGet();
 		}
 		return this;
 	}
 	
 	public HashedFileObject deleteObject(String key) {
-		// Explicitly synchronized around the objects Trie such that no
-		// internal conflicts occur during GSON serialization (when GSON
-		// is serializing this object to JSON).  NOTE: The TrieTypeAdapter
-		// is also synchronized on the Trie to be serialized (such that no
-		// modifications are allowed to the Trie while it's being serialized).
-		// We are _not_ synchronizing around individual operations on the Trie
-		// (e.g., a single get, put, remove, etc.) but rather the entire Trie
-		// on each operation.
-		synchronized(objects_) {
-			return objects_.remove(key);
-		}
+		final HashedFileObject previous = objects_.remove(key);
+		inlineBytes_.addAndGet(-getInlineLength(previous));
+		return previous;
 	}
 	
 	public void deleteAllObjects() {
-		// Explicitly synchronized around the objects Trie such that no
-		// internal conflicts occur during GSON serialization (when GSON
-		// is serializing this object to JSON).  NOTE: The TrieTypeAdapter
-		// is also synchronized on the Trie to be serialized (such that no
-		// modifications are allowed to the Trie while it's being serialized).
-		// We are _not_ synchronizing around individual operations on the Trie
-		// (e.g., a single get, put, remove, etc.) but rather the entire Trie
-		// on each operation.
-		synchronized(objects_) {
-			objects_.clear();
+		objects_.clear();
+		inlineBytes_.set(0L);
+	}
+	
+	/**
+	 * Accounts for the given number of bytes of values stored inline, if
+	 * that keeps the total within the given budget.  Returns false, and
+	 * accounts for nothing, otherwise.
+	 */
+	public boolean reserveInline(final long bytes, final long budget) {
+		for(;;) {
+			final long current = inlineBytes_.get();
+			if(current + bytes > budget) {
+				return false;
+			} else if(inlineBytes_.compareAndSet(current, current + bytes)) {
+				return true;
+			}
 		}
 	}
 	
+	public void releaseInline(final long bytes) {
+		inlineBytes_.addAndGet(-bytes);
+	}
+	
+	public long getInlineBytes() {
+		return inlineBytes_.get();
+	}
+	
+	private static final long getInlineLength(final HashedFileObject hfo) {
+		final byte[] value = (hfo != null) ? hfo.getValue() : null;
+		return (value != null) ? value.length : 0L;
+	}
+	
 	public HashedFileObject getObject(String key) {
-		// Explicitly synchronized around the objects Trie such that no
-		// internal conflicts occur during GSON serialization (when GSON
-		// is serializing this object to JSON).  NOTE: The TrieTypeAdapter
-		// is also synchronized on the Trie to be serialized (such that no
-		// modifications are allowed to the Trie while it's being serialized).
-		// We are _not_ synchronizing around individual operations on the Trie
-		// (e.g., a single get, put, remove, etc.) but rather the entire Trie
-		// on each operation.
-		synchronized(objects_) {
-			return objects_.get(key);
-		}
+		return objects_.get(key);
 	}
 	
-	public ObjectList startsWith(String prefix) {
-		final ObjectList list = new ObjectList();
-		// Explicitly synchronized around the objects Trie such that no
-		// internal conflicts occur during GSON serialization (when GSON
-		// is serializing this object to JSON).  NOTE: The TrieTypeAdapter
-		// is also synchronized on the Trie to be serialized (such that no
-		// modifications are allowed to the Trie while it's being serialized).
-		// We are _not_ synchronizing around individual operations on the Trie
-		// (e.g., a single get, put, remove, etc.) but rather the entire Trie
-		// on each operation.
-		synchronized(objects_) {
-			final Map<String, HashedFileObject> startsWith =
-				objects_.prefixMap(prefix);
-			for(final Map.Entry<String, HashedFileObject> entry :
-				startsWith.entrySet()) {
-				final HashedFileObject hfo = entry.getValue();
-				// Clone the underlying HFO for the return
-				list.addObject(new HashedFileObject(
-					//hfo.getFile(),
-					hfo.getName(),
-					hfo.getHeaders()));
+	/**
+	 * Returns a point-in-time copy of the list of objects in this
+	 * repository, in key order, as used to persist the repository.  Only
+	 * the list is copied, not the objects themselves.  Taking the copy
+	 * never blocks readers or writers of the index; any change made while
+	 * the copy is taken may or may not be reflected in it.
+	 */
+	public List<HashedFileObject> getObjects() {
+		return new ArrayList<HashedFileObject>(objects_.values());
+	}
+	
+	/**
+	 * Returns the number of objects in this repository.  Walks the index,
+	 * so not meant to be called on every request.
+	 */
+	public int getObjectCount() {
+		return objects_.size();
+	}
+	
+	/**
+	 * Returns the number of objects in this repository, remembering it as
+	 * the count this repository was weighed at.  Walks the index.
+	 */
+	public int weigh() {
+		addedSinceWeighed_.set(0);
+		return weighedCount_ = getObjectCount();
+	}
+	
+	/**
+	 * Returns true if this repository has at least doubled in size since
+	 * it was last weighed (see {@link #weigh()}).
+	 */
+	public boolean isOverweight() {
+		return addedSinceWeighed_.get() > weighedCount_;
+	}
+	
+	/**
+	 * Returns a lazy iterator over the objects in this repository whose
+	 * key starts with the given prefix, in key order, starting right after
+	 * the given marker key if one is provided.  The index is walked as the
+	 * iterator advances, and the iteration is weakly consistent.
+	 * 
+	 * If a delimiter is given, all keys that contain the delimiter after
+	 * the prefix are rolled up into a single entry for their common prefix:
+	 * the key up to, and including, the first such delimiter.  A common
+	 * prefix is returned as an entry with a null value.  The keys under a
+	 * common prefix are never visited; the iterator jumps right past them.
+	 * @param prefix the prefix every returned key starts with, or
+	 * an empty string for all objects
+	 * @param marker the key right after which to start, or null to start
+	 * at the first key with the given prefix
+	 * @param delimiter the delimiter to roll keys up by, or null
+	 */
+	public Iterator<Map.Entry<String, HashedFileObject>> iterator(
+		final String prefix, final String marker, final String delimiter) {
+		checkNotNull(prefix, "Prefix cannot be null.");
+		final boolean rollUp = (delimiter != null && !delimiter.isEmpty());
+		// All keys that start with the prefix are sorted, contiguously,
+		// at or right after the prefix itself.
+		String from = prefix;
+		boolean inclusive = true;
+		if(marker != null && marker.compareTo(prefix) >= 0) {
+			from = marker;
+			inclusive = false;
+			// A marker under a common prefix means the common prefix was
+			// already listed; start past all keys under it.
+			final String commonPrefix = (rollUp && marker.startsWith(prefix)) ?
+				getCommonPrefix(marker, prefix.length(), delimiter) : null;
+			if(commonPrefix != null) {
+				from = getSuccessor(commonPrefix);
+				inclusive = true;
 			}
 		}
-		return list;
+		final Iterator<Map.Entry<String, HashedFileObject>> start =
+			(from != null) ?
+				objects_.tailMap(from, inclusive).entrySet().iterator() :
+				null;
+		return new AbstractIterator<Map.Entry<String, HashedFileObject>>() {
+			private Iterator<Map.Entry<String, HashedFileObject>> entries_ =
+				start;
+			@Override
+			protected Map.Entry<String, HashedFileObject> computeNext() {
+				if(entries_ == null || !entries_.hasNext()) {
+					return endOfData();
+				}
+				final Map.Entry<String, HashedFileObject> entry =
+					entries_.next();
+				final String key = entry.getKey();
+				if(!key.startsWith(prefix)) {
+					return endOfData();
+				}
+				final String commonPrefix = (rollUp) ?
+					getCommonPrefix(key, prefix.length(), delimiter) : null;
+				if(commonPrefix != null) {
+					// Skip the entire subtree under the common prefix.
+					final String next = getSuccessor(commonPrefix);
+					entries_ = (next != null) ?
+						objects_.tailMap(next, true).entrySet().iterator() :
+						null;
+					return immutableEntry(commonPrefix,
+						(HashedFileObject)null);
+				}
+				return entry;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the given key up to, and including, the first occurrence
+	 * of the delimiter at or after the given index, or null if there is
+	 * no such delimiter.
+	 */
+	private static final String getCommonPrefix(final String key,
+		final int fromIndex, final String delimiter) {
+		final int index = key.indexOf(delimiter, fromIndex);
+		return (index < 0) ? null :
+			key.substring(0, index + delimiter.length());
+	}
+	
+	/**
+	 * Returns the smallest string that is greater than every string that
+	 * starts with the given prefix, or null if there is no such string.
+	 */
+	private static final String getSuccessor(final String prefix) {
+		int length = prefix.length();
+		while(length > 0 && prefix.charAt(length - 1) == Character.MAX_VALUE) {
+			--length;
+		}
+		if(length == 0) {
+			return null;
+		}
+		return prefix.substring(0, length - 1) +
+			(char)(prefix.charAt(length - 1) + 1);
 	}
 	
 	// Straight from Eclipse
@@ -207,50 +359,45 @@ public final class Repository extends StoreableEntity implements Serializable {
 		return true;
 	}
 	
-	public static final class TrieTypeAdapter
-		implements JsonSerializer<Trie<String, HashedFileObject>>,
-			JsonDeserializer<Trie<String, HashedFileObject>> {
+	public static final class IndexTypeAdapter
+		implements JsonSerializer<ConcurrentNavigableMap<String, HashedFileObject>>,
+			JsonDeserializer<ConcurrentNavigableMap<String, HashedFileObject>> {
 		
 		@Override
-		public JsonElement serialize(final Trie<String, HashedFileObject> trie,
+		public JsonElement serialize(
+			final ConcurrentNavigableMap<String, HashedFileObject> index,
 			final Type typeOfSrc, final JsonSerializationContext context) {
 			final JsonObject json = new JsonObject();
-			// Explicitly synchronized around the objects Trie such that no
-			// internal conflicts occur during GSON serialization (when GSON
-			// is serializing this object to JSON).  NOTE: The TrieTypeAdapter
-			// is also synchronized on the Trie to be serialized (such that no
-			// modifications are allowed to the Trie while it's being serialized).
-			// We are _not_ synchronizing around individual operations on the Trie
-			// (e.g., a single get, put, remove, etc.) but rather the entire Trie
-			// on each operation.
-			synchronized(trie) {
-				for(final Map.Entry<String, HashedFileObject> entry :
-					trie.entrySet()) {
-					json.add(entry.getKey(),
-						// The HashedFileObject of this entry. 
-						context.serialize(entry.getValue(),
-							HashedFileObject.class));
-				}
+			// Weakly consistent; never blocks readers or writers of the
+			// index while it's being serialized.
+			for(final Map.Entry<String, HashedFileObject> entry :
+				index.entrySet()) {
+				json.add(entry.getKey(),
+					// The HashedFileObject of this entry. 
+					context.serialize(entry.getValue(),
+						HashedFileObject.class));
 			}
 			return json;
 		}
 	
 		@Override
-		public Trie<String, HashedFileObject> deserialize(final JsonElement json,
-			final Type typeOfT, final JsonDeserializationContext context) {
+		public ConcurrentNavigableMap<String, HashedFileObject> deserialize(
+			final JsonElement json, final Type typeOfT,
+			final JsonDeserializationContext context) {
 			if(!(json instanceof JsonObject)) {
-				throw new JsonParseException("Dood! The Trie to " +
+				throw new JsonParseException("Dood! The index to " +
 		    		"deserialize should be an object!");
 			}
-			final Trie<String, HashedFileObject> trie = new PatriciaTrie<>();
+			final ConcurrentNavigableMap<String, HashedFileObject> index =
+				new ConcurrentSkipListMap<>();
 			for(final Map.Entry<String, JsonElement> entry :
 				json.getAsJsonObject().entrySet()) {
-				trie.put(entry.getKey(),
+				index.put(entry.getKey(),
 					// The HashedFileObject of this entry.
 					context.<HashedFileObject>deserialize(entry.getValue(),
 						HashedFileObject.class));
 			}
-			return trie;
+			return index;
 		}
 		
 	}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.entities.types;
+
+import java.io.Serializable;
+
+import com.google.gson.annotations.SerializedName;
+import com.kolich.havalo.entities.HavaloEntity;
+
+/**
+ * A single mutation of a {@link Repository} index, as appended to the
+ * repository's mutation log.
+ */
+public final class RepositoryLogRecord extends HavaloEntity implements Serializable {
+
+	private static final long serialVersionUID = -2641953035381457617L;
+	
+	public static enum Operation {
+		PUT, DELETE;
+	}
+	
+	@SerializedName("op")
+	private final Operation operation_;
+	
+	@SerializedName("key")
+	private final String key_;
+	
+	@SerializedName("object")
+	private final HashedFileObject object_;
+	
+	public RepositoryLogRecord(Operation operation, String key,
+		HashedFileObject object) {
+		operation_ = operation;
+		key_ = key;
+		object_ = object;
+	}
+	
+	// For GSON
+	public RepositoryLogRecord() {
+		this(null, null, null);
+	}
+	
+	public static final RepositoryLogRecord put(final HashedFileObject hfo) {
+		// Copy the object as it stands now, such that further changes
+		// to the live object are not reflected in the record.
+		return new RepositoryLogRecord(Operation.PUT, hfo.getName(),
+			new HashedFileObject(hfo.getName(), hfo.getHeaders())
+				.setSegment(hfo.getSegment())
+				.setValue(hfo.getValue())
+				.setBlob(hfo.getBlob())
+				.setStoredLength(hfo.getStoredLength()));
+	}
+	
+	public static final RepositoryLogRecord delete(final String key) {
+		return new RepositoryLogRecord(Operation.DELETE, key, null);
+	}
+	
+	public Operation getOperation() {
+		return operation_;
+	}
+	
+	public String getKey() {
+		return key_;
+	}
+	
+	public HashedFileObject getObject() {
+		return object_;
+	}
+	
+	/**
+	 * Applies this record to the given repository index.
+	 */
+	public void apply(final Repository repo) {
+		switch(operation_) {
+		case PUT:
+			repo.addObject(key_, object_);
+			break;
+		case DELETE:
+			repo.deleteObject(key_);
+			break;
+		}
+	}
+	
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.entities.types;
+
+/**
+ * Points at the value of a small object inside of one of the packed
+ * segment files of its repository.  Immutable; a new pointer is created
+ * whenever the value is (re)written.
+ */
+public final class SegmentPointer {
+	
+	private final int segment_;
+	private final long offset_;
+	private final long length_;
+	
+	public SegmentPointer(final int segment, final long offset,
+		final long length) {
+		segment_ = segment;
+		offset_ = offset;
+		length_ = length;
+	}
+	
+	public int getSegment() {
+		return segment_;
+	}
+	
+	public long getOffset() {
+		return offset_;
+	}
+	
+	public long getLength() {
+		return length_;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d@%d+%d", segment_, offset_, length_);
+	}
+	
+}
@@ -26,6 +26,8 @@
 
 package com.kolich.havalo.filters;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import curacao.CuracaoContext;
 import curacao.annotations.Injectable;
 import curacao.mappers.request.filters.CuracaoRequestFilter;
@@ -38,7 +40,9 @@ import org.slf4j.Logger;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletRequest;
+import java.security.MessageDigest;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import static com.google.common.net.HttpHeaders.*;
 import static org.apache.commons.codec.binary.Base64.encodeBase64;
@@ -115,11 +119,13 @@ public final class HavaloAuthenticationFilter implements CuracaoRequestFilter {
             // Compute the resulting signed signature.
             final String computed = HMACSHA256Signer.sign(userKp, stringToSign);
             // Does the signature match what was passed to us in the
-            // Authorization request header?
-            if(!computed.equals(signature)) {
+            // Authorization request header?  Compared in constant time,
+            // so the time it takes to fail leaks nothing about how much
+            // of the signature was right.
+            if(!MessageDigest.isEqual(getBytesUtf8(computed),
+                getBytesUtf8(signature))) {
                 throw new BadCredentialsException("Signatures did not " +
-                    "match (request=" + signature + ", computed=" + computed +
-                    ")");
+                    "match (request=" + signature + ")");
             }
             // Success!
             request.setAttribute(HAVALO_AUTHENTICATION_ATTRIBUTE, userKp);
@@ -161,6 +167,16 @@ public final class HavaloAuthenticationFilter implements CuracaoRequestFilter {
 	private static final class HMACSHA256Signer {
 		
 		private static final String HMAC_SHA256_ALGORITHM_NAME = "HmacSHA256";
+		
+		/**
+		 * An initialized Mac per key pair, which is cloned for each request
+		 * instead of looking up the algorithm, and running the key schedule
+		 * of the secret, every time.  Key pairs are weakly referenced, and
+		 * compared by identity: once a repository is deleted its key pair,
+		 * and the Mac of it, go away too.
+		 */
+		private static final Cache<KeyPair,SignerMac> macs__ =
+			CacheBuilder.newBuilder().weakKeys().build();
 			
 		/**
 	     * Returns a Base-64 encoded HMAC-SHA256 signature.
@@ -168,13 +184,8 @@ public final class HavaloAuthenticationFilter implements CuracaoRequestFilter {
 		public static final String sign(final KeyPair kp,
                                         final String input) {
 			try {
-				// Get a new instance of the HMAC-SHA256 algorithm.
-				final Mac mac = Mac.getInstance(HMAC_SHA256_ALGORITHM_NAME);
-				// Init it with our secret and the secret-key algorithm.
-				mac.init(new SecretKeySpec(getBytesUtf8(kp.getSecret()),
-					HMAC_SHA256_ALGORITHM_NAME));
 				// Actually sign the input.
-				return newStringUtf8(encodeBase64(mac.doFinal(
+				return newStringUtf8(encodeBase64(getMac(kp).doFinal(
 					getBytesUtf8(input))));
 			} catch (Exception e) {
 				throw new AuthenticationException("Failed to SHA-256 " +
@@ -182,6 +193,57 @@ public final class HavaloAuthenticationFilter implements CuracaoRequestFilter {
 			}
 		}
 		
+		/**
+		 * Returns a Mac, for use by the calling thread only, initialized
+		 * with the current secret of the given key pair.
+		 */
+		private static final Mac getMac(final KeyPair kp) throws Exception {
+			final String secret = kp.getSecret();
+			SignerMac cached = macs__.get(kp, new Callable<SignerMac>() {
+				@Override
+				public SignerMac call() throws Exception {
+					return new SignerMac(secret);
+				}
+			});
+			// The secret of a key pair can change underneath us.
+			if(!cached.secret_.equals(secret)) {
+				cached = new SignerMac(secret);
+				macs__.put(kp, cached);
+			}
+			try {
+				return (Mac)cached.prototype_.clone();
+			} catch (CloneNotSupportedException e) {
+				// Not all providers support cloning, fall back to a new
+				// Mac every time.
+				return newMac(secret);
+			}
+		}
+		
+		private static final Mac newMac(final String secret) throws Exception {
+			// Get a new instance of the HMAC-SHA256 algorithm.
+			final Mac mac = Mac.getInstance(HMAC_SHA256_ALGORITHM_NAME);
+			// Init it with our secret and the secret-key algorithm.
+			mac.init(new SecretKeySpec(getBytesUtf8(secret),
+				HMAC_SHA256_ALGORITHM_NAME));
+			return mac;
+		}
+		
+		/**
+		 * An initialized, never used, Mac and the secret it was
+		 * initialized with.
+		 */
+		private static final class SignerMac {
+			
+			private final String secret_;
+			private final Mac prototype_;
+			
+			private SignerMac(final String secret) throws Exception {
+				secret_ = secret;
+				prototype_ = newMac(secret);
+			}
+			
+		}
+		
 	}
 
 }
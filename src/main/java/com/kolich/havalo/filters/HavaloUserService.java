@@ -44,11 +44,17 @@ public final class HavaloUserService {
 		repoManager_ = checkNotNull(repoManager, "Repository manager cannot be null.");
 	}
 	
+	/**
+	 * Looks up the key pair from the in-memory credential index of the
+	 * repository manager; the repository itself is never loaded.
+	 */
 	public KeyPair loadKeyPairById(final UUID id) {
 		try {
-			final KeyPair kp = repoManager_.getRepository(
-				new HavaloUUID(id)).getKeyPair();
-			if(kp.getSecret() == null) {
+			final KeyPair kp = repoManager_.getKeyPair(new HavaloUUID(id));
+			if(kp == null) {
+				throw new UsernameNotFoundException("Oops, no KeyPair " +
+					"found for user (" + id + ").");
+			} else if(kp.getSecret() == null) {
 				throw new NullorEmptySecretException("Oops, KeyPair secret " +
 					"for user (" + id + ") was null or unknown.");
 			}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A single, satisfiable, range of bytes within an object of known length
+ * as requested by a HTTP "Range" request header (RFC 7233).
+ */
+public final class ByteRange {
+	
+	private static final String BYTES_UNIT = "bytes";
+	
+	/**
+	 * Requests with more ranges than this (after overlapping ranges are
+	 * merged) are answered with the entire object; a long list of tiny
+	 * ranges costs far more to serve than the object itself.
+	 */
+	private static final int MAX_RANGES = 64;
+	
+	/**
+	 * Bounds the work spent parsing (and merging) a single header.
+	 */
+	private static final int MAX_PARSED_RANGES = MAX_RANGES * 4;
+	
+	private static final Comparator<ByteRange> BY_FIRST =
+		new Comparator<ByteRange>() {
+		@Override
+		public int compare(final ByteRange a, final ByteRange b) {
+			return Long.compare(a.first_, b.first_);
+		}
+	};
+	
+	private final long first_;
+	private final long last_;
+	
+	private ByteRange(final long first, final long last) {
+		first_ = first;
+		last_ = last;
+	}
+	
+	public long getFirst() {
+		return first_;
+	}
+	
+	public long getLast() {
+		return last_;
+	}
+	
+	public long getLength() {
+		return last_ - first_ + 1L;
+	}
+	
+	/**
+	 * The value of a "Content-Range" header describing this range of an
+	 * object of the given total length.
+	 */
+	public String toContentRange(final long length) {
+		return String.format("%s %d-%d/%d", BYTES_UNIT, first_, last_,
+			length);
+	}
+	
+	/**
+	 * The value of a "Content-Range" header sent with a 416 response for
+	 * an object of the given total length.
+	 */
+	public static final String toUnsatisfiedContentRange(final long length) {
+		return String.format("%s */%d", BYTES_UNIT, length);
+	}
+	
+	/**
+	 * Parses the given "Range" header value against an object of the
+	 * given length.  Returns null if the header is malformed, uses a unit
+	 * other than bytes or asks for too many ranges, in which case the
+	 * header should be ignored and the entire object sent.  Returns an
+	 * empty list if none of the requested ranges are satisfiable.
+	 * Otherwise, returns the satisfiable ranges in the order they were
+	 * requested, unless some of them overlap, in which case they're
+	 * merged and returned in ascending order.
+	 */
+	public static final List<ByteRange> parse(final String header,
+		final long length) {
+		if(header == null) {
+			return null;
+		}
+		final int equals = header.indexOf('=');
+		if(equals < 0 || !BYTES_UNIT.equalsIgnoreCase(
+			header.substring(0, equals).trim())) {
+			return null;
+		}
+		final List<ByteRange> ranges = new ArrayList<ByteRange>();
+		boolean overlapping = false;
+		int specs = 0;
+		for(final String token : header.substring(equals + 1).split(",")) {
+			final String spec = token.trim();
+			if(spec.isEmpty()) {
+				// Empty list elements are allowed, and ignored.
+				continue;
+			}
+			specs++;
+			final int dash = spec.indexOf('-');
+			if(dash < 0) {
+				return null;
+			}
+			final long first, last;
+			try {
+				if(dash == 0) {
+					// A suffix range, the last N bytes of the object.
+					final long suffix = parseNonNegative(spec.substring(1));
+					if(suffix == 0L || length == 0L) {
+						continue; // Unsatisfiable
+					}
+					first = Math.max(0L, length - suffix);
+					last = length - 1L;
+				} else {
+					first = parseNonNegative(spec.substring(0, dash));
+					final String lastSpec = spec.substring(dash + 1);
+					final long requestedLast = (lastSpec.isEmpty()) ?
+						Long.MAX_VALUE : parseNonNegative(lastSpec);
+					if(requestedLast < first) {
+						return null;
+					}
+					if(first >= length) {
+						continue; // Unsatisfiable
+					}
+					last = Math.min(requestedLast, length - 1L);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if(ranges.size() >= MAX_PARSED_RANGES) {
+				return null;
+			}
+			final ByteRange range = new ByteRange(first, last);
+			for(final ByteRange other : ranges) {
+				overlapping |= range.first_ <= other.last_ + 1L &&
+					other.first_ <= range.last_ + 1L;
+			}
+			ranges.add(range);
+		}
+		if(specs == 0) {
+			return null;
+		}
+		final List<ByteRange> result = (overlapping) ?
+			merge(ranges) : ranges;
+		return (result.size() > MAX_RANGES) ? null : result;
+	}
+	
+	private static final List<ByteRange> merge(final List<ByteRange> ranges) {
+		Collections.sort(ranges, BY_FIRST);
+		final List<ByteRange> merged = new ArrayList<ByteRange>();
+		ByteRange current = ranges.get(0);
+		for(int i = 1, l = ranges.size(); i < l; i++) {
+			final ByteRange next = ranges.get(i);
+			if(next.first_ <= current.last_ + 1L) {
+				current = new ByteRange(current.first_,
+					Math.max(current.last_, next.last_));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+	
+	private static final long parseNonNegative(final String value) {
+		final String trimmed = value.trim();
+		// Long.parseLong() would accept a leading sign.
+		if(trimmed.isEmpty() || !Character.isDigit(trimmed.charAt(0))) {
+			throw new NumberFormatException(value);
+		}
+		return Long.parseLong(trimmed);
+	}
+	
+}
@@ -28,6 +28,7 @@ package com.kolich.havalo.io;
 
 import java.io.InputStream;
 
+import com.kolich.havalo.entities.HavaloEntity;
 import com.kolich.havalo.entities.StoreableEntity;
 
 public interface MetaStore {
@@ -37,5 +38,24 @@ public interface MetaStore {
 	public void save(final StoreableEntity entity);
 	
 	public void delete(final String index);
+	
+	/**
+	 * Appends a single record to the end of the mutation log associated
+	 * with the given index.  The cost of an append is proportional to the
+	 * size of the record, not to the size of the entity it mutates.
+	 */
+	public void append(final String index, final HavaloEntity record);
+	
+	/**
+	 * Returns the number of records appended to the mutation logs of
+	 * the given index since it was last saved.
+	 */
+	public long getLogRecordCount(final String index);
+	
+	/**
+	 * Returns the size, in bytes, of the mutation logs of the given
+	 * index since it was last saved.
+	 */
+	public long getLogSize(final String index);
 
 }
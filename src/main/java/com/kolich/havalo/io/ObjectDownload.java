@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.kolich.havalo.io.ObjectTransfer.borrowBuffer;
+import static com.kolich.havalo.io.ObjectTransfer.copy;
+import static com.kolich.havalo.io.ObjectTransfer.returnBuffer;
+import static com.kolich.havalo.io.ObjectTransfer.writeMapped;
+import static java.nio.channels.Channels.newInputStream;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+
+/**
+ * The body of an object download: any number of regions of an (open)
+ * object file, or of an object held in memory, optionally interleaved
+ * with literal bytes such as the part headers of a "multipart/byteranges"
+ * response.  A gzip'ed object can be sent as-is, or gunzip'ed on the fly.
+ * The download owns the file channel, and closes it once the body was
+ * sent.  Either way, the async context of the request is
+ * completed once the download is done, or failed.
+ */
+public final class ObjectDownload {
+	
+	private static final Logger logger__ = getLogger(ObjectDownload.class);
+	
+	private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+	
+	private final FileChannel channel_;
+	
+	/**
+	 * The object itself, if it's held in memory instead of read from
+	 * the file channel.
+	 */
+	private final byte[] value_;
+	
+	/**
+	 * Where the object starts in the file; regions are relative to it.
+	 */
+	private final long base_;
+	private final long length_;
+	
+	/**
+	 * Each part is either a byte[] or a {@link Region} of the file.
+	 */
+	private final List<Object> parts_;
+	
+	private boolean inflate_ = false;
+	
+	/**
+	 * @param channel the open file the object is read from
+	 * @param offset where the object starts in the file, e.g., for an
+	 * object stored in a packed segment along with others
+	 * @param length the length of the object
+	 */
+	public ObjectDownload(final FileChannel channel, final long offset,
+		final long length) {
+		channel_ = checkNotNull(channel, "File channel cannot be null.");
+		value_ = null;
+		base_ = offset;
+		length_ = length;
+		parts_ = new ArrayList<Object>();
+	}
+	
+	/**
+	 * @param value the object itself, held in memory
+	 */
+	public ObjectDownload(final byte[] value) {
+		channel_ = null;
+		value_ = checkNotNull(value, "Value cannot be null.");
+		base_ = 0L;
+		length_ = value.length;
+		parts_ = new ArrayList<Object>();
+	}
+	
+	public long getLength() {
+		return length_;
+	}
+	
+	public ObjectDownload add(final byte[] bytes) {
+		parts_.add(checkNotNull(bytes, "Bytes cannot be null."));
+		return this;
+	}
+	
+	public ObjectDownload add(final long position, final long count) {
+		if(value_ != null) {
+			// Small enough to be held in memory, a copy is cheap.
+			return add(Arrays.copyOfRange(value_, (int)position,
+				(int)(position + count)));
+		}
+		parts_.add(new Region(base_ + position, count));
+		return this;
+	}
+	
+	/**
+	 * Sends the object, which is gzip'ed, gunzip'ed.  The download must
+	 * hold the object in its entirety, as a single region of the file.
+	 */
+	public ObjectDownload inflate() {
+		checkState(channel_ != null && parts_.size() == 1 &&
+			parts_.get(0) instanceof Region, "Only an entire object " +
+			"file can be inflated.");
+		inflate_ = true;
+		return this;
+	}
+	
+	/**
+	 * Releases the download without sending it.
+	 */
+	public void close() {
+		closeQuietly(channel_);
+	}
+	
+	/**
+	 * Sends the download with blocking writes, on the calling thread.
+	 */
+	public void send(final OutputStream os, final AsyncContext context) {
+		try {
+			if(inflate_) {
+				final byte[] buffer = borrowBuffer();
+				try(final InputStream is = openInflated()) {
+					int read;
+					while((read = is.read(buffer)) != -1) {
+						os.write(buffer, 0, read);
+					}
+				} finally {
+					returnBuffer(buffer);
+				}
+			} else if(parts_.size() == 1 && parts_.get(0) instanceof Region) {
+				// Zero-copy where the container supports it.
+				final Region region = (Region)parts_.get(0);
+				ObjectTransfer.send(channel_, region.position_,
+					region.count_, os);
+			} else {
+				for(final Object part : parts_) {
+					if(part instanceof byte[]) {
+						os.write((byte[])part);
+					} else {
+						final Region region = (Region)part;
+						copy(channel_, region.position_, region.count_, os);
+					}
+				}
+			}
+		} catch (Exception e) {
+			// Nothing to tell the consumer at this point, the response is
+			// already committed.
+			logger__.error("Failed to stream object to client.", e);
+		} finally {
+			closeQuietly(os);
+			closeQuietly(channel_);
+			context.complete();
+		}
+	}
+	
+	/**
+	 * Sends the download with non-blocking (Servlet 3.1) writes: the body
+	 * is written by container threads whenever the consumer is ready for
+	 * more of it, and no thread is held while a slow consumer catches up.
+	 * Returns immediately.
+	 */
+	public void sendAsync(final ServletOutputStream os,
+		final AsyncContext context) {
+		os.setWriteListener(new Writer(os, context));
+	}
+	
+	/**
+	 * Opens a stream that reads the (single) region of the file gunzip'ed.
+	 * Closing the stream closes the file channel.
+	 */
+	private InputStream openInflated() throws IOException {
+		final Region region = (Region)parts_.get(0);
+		channel_.position(region.position_);
+		return new GZIPInputStream(newInputStream(channel_),
+			INFLATE_BUFFER_SIZE);
+	}
+	
+	private final class Writer implements WriteListener {
+		
+		private final ServletOutputStream os_;
+		private final AsyncContext context_;
+		
+		private final AtomicBoolean done_;
+		
+		/**
+		 * Borrowed on the first write, and returned to the pool once done.
+		 */
+		private byte[] buffer_ = null;
+		
+		private int part_ = 0;
+		private long offset_ = 0L;
+		
+		private InputStream inflated_ = null;
+		
+		private Writer(final ServletOutputStream os,
+			final AsyncContext context) {
+			os_ = os;
+			context_ = context;
+			done_ = new AtomicBoolean(false);
+		}
+		
+		@Override
+		public void onWritePossible() throws IOException {
+			// Only ever write when the stream is ready, the previous write
+			// (and the buffer it was given) is done with otherwise.
+			while(os_.isReady()) {
+				if(part_ == parts_.size()) {
+					// Everything was written, and flushed.
+					done();
+					return;
+				}
+				if(inflate_) {
+					if(inflated_ == null) {
+						buffer_ = borrowBuffer();
+						inflated_ = openInflated();
+					}
+					final int read = inflated_.read(buffer_);
+					if(read < 0) {
+						part_ = parts_.size();
+					} else {
+						os_.write(buffer_, 0, read);
+					}
+					continue;
+				}
+				final Object part = parts_.get(part_);
+				if(part instanceof byte[]) {
+					os_.write((byte[])part);
+					part_++;
+					continue;
+				}
+				final Region region = (Region)part;
+				final long remaining = region.count_ - offset_;
+				if(remaining == 0L) {
+					part_++;
+					offset_ = 0L;
+					continue;
+				}
+				// Zero-copy where the container supports it, a chunk at
+				// a time.
+				final long mapped = writeMapped(channel_,
+					region.position_ + offset_, remaining, os_);
+				if(mapped > 0L) {
+					offset_ += mapped;
+					continue;
+				}
+				if(buffer_ == null) {
+					buffer_ = borrowBuffer();
+				}
+				final ByteBuffer wrapped = ByteBuffer.wrap(buffer_, 0,
+					(int)Math.min(buffer_.length, remaining));
+				final int read = channel_.read(wrapped,
+					region.position_ + offset_);
+				if(read < 0) {
+					throw new EOFException("Unexpected end of file at " +
+						"position " + (region.position_ + offset_) + ", " +
+						remaining + "-bytes short.");
+				}
+				os_.write(buffer_, 0, read);
+				offset_ += read;
+			}
+		}
+		
+		@Override
+		public void onError(final Throwable t) {
+			logger__.error("Failed to stream object to client.", t);
+			done();
+		}
+		
+		private void done() {
+			if(done_.compareAndSet(false, true)) {
+				closeQuietly(inflated_);
+				closeQuietly(channel_);
+				if(buffer_ != null) {
+					returnBuffer(buffer_);
+				}
+				context_.complete();
+			}
+		}
+		
+	}
+	
+	private static final class Region {
+		
+		private final long position_;
+		private final long count_;
+		
+		private Region(final long position, final long count) {
+			position_ = position;
+			count_ = count;
+		}
+		
+	}
+	
+}
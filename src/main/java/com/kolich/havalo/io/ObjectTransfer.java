@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+/**
+ * Sends the bytes of an object file to a Servlet response.
+ * 
+ * Where the container supports it, the file is memory mapped and handed
+ * to the container as a single buffer, which the container writes to the
+ * socket straight from the page cache without copying it through the
+ * heap.  Jetty 9 supports this through HttpOutput.sendContent(ByteBuffer),
+ * which is found, and cached, by reflection such that there's no compile
+ * time dependency on any one container.  Everywhere else, the file is
+ * copied with positional reads through large, pooled, buffers.
+ * 
+ * Non-blocking (Servlet 3.1) downloads are mapped in chunks instead,
+ * each handed to the container with HttpOutput.write(ByteBuffer), which
+ * Jetty 9 completes asynchronously, straight from the mapped buffer.
+ */
+public final class ObjectTransfer {
+	
+	private static final Logger logger__ = getLogger(ObjectTransfer.class);
+	
+	private static final String SEND_CONTENT_METHOD = "sendContent";
+	private static final String WRITE_METHOD = "write";
+	
+	/**
+	 * Mapping has a fixed cost; small files are copied instead.
+	 */
+	private static final long MIN_MAPPED_LENGTH = 64L * 1024L;
+	
+	/**
+	 * The most mapped by a single non-blocking write.
+	 */
+	private static final long MAX_MAPPED_WRITE_LENGTH = 8L * 1024L * 1024L;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 256;
+	
+	/**
+	 * The "sendContent(ByteBuffer)" method of each output stream class
+	 * seen so far, or null if the class has none.  Wrapped in a one
+	 * element array, as the map can't hold null values.
+	 */
+	private static final ConcurrentMap<Class<?>, Method[]> sendContent__ =
+		new ConcurrentHashMap<Class<?>, Method[]>();
+	
+	/**
+	 * Likewise, the "write(ByteBuffer)" method of each output stream class.
+	 */
+	private static final ConcurrentMap<Class<?>, Method[]> write__ =
+		new ConcurrentHashMap<Class<?>, Method[]>();
+	
+	/**
+	 * Heap, not direct, buffers.  The Servlet OutputStream only takes a
+	 * byte[], so the bytes of a direct buffer would be copied into the
+	 * heap on every write anyway; and a read into a heap buffer goes
+	 * through the JDK's own cached direct buffer.
+	 */
+	private static final Queue<byte[]> buffers__ =
+		new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger pooled__ = new AtomicInteger(0);
+	
+	// Cannot instantiate
+	private ObjectTransfer() {}
+	
+	/**
+	 * Sends the given region of the file as the entire remaining body
+	 * of the response behind the given stream.  Depending on the
+	 * container, the stream may be closed once the region was sent.
+	 */
+	public static final void send(final FileChannel channel,
+		final long position, final long count, final OutputStream os)
+		throws IOException {
+		if(count >= MIN_MAPPED_LENGTH && count <= Integer.MAX_VALUE) {
+			final Method sendContent = getMethod(sendContent__,
+				SEND_CONTENT_METHOD, os.getClass());
+			// The object file is never truncated in place (a PUT renames
+			// a new file over it) so the mapping stays valid for as long
+			// as the container needs it.  Note there's no unmapping it
+			// sooner than the buffer is garbage collected (not in Java 8),
+			// so every large download holds on to its mapping until then.
+			// That's address space and page cache, not heap, and plenty
+			// of the former on a 64-bit JVM; non-blocking downloads keep
+			// it bounded further by mapping a chunk at a time.
+			if(sendContent != null && invoke(sendContent__, sendContent, os,
+				channel.map(READ_ONLY, position, count))) {
+				return;
+			}
+		}
+		copy(channel, position, count, os);
+	}
+	
+	/**
+	 * Writes the start of the given region of the file to the given
+	 * stream as a mapped buffer, if the container supports it, and the
+	 * region is worth mapping.  On a non-blocking stream, the container
+	 * completes the write asynchronously, the stream is ready again once
+	 * it's done.  Returns the number of bytes written, at most a chunk of
+	 * the region; or zero if nothing was, in which case the caller should
+	 * copy the region instead.  The stream is never closed.
+	 * 
+	 * The end of the region is never mapped, but left to be copied: when
+	 * the write that completes a response finishes asynchronously, Jetty
+	 * 9.3 may race the application completing it, and leave the connection
+	 * hanging until it idles out.  A small, copied, last write completes
+	 * right away.
+	 */
+	public static final long writeMapped(final FileChannel channel,
+		final long position, final long count, final OutputStream os)
+		throws IOException {
+		final long mappable = count - BUFFER_SIZE;
+		if(mappable < MIN_MAPPED_LENGTH) {
+			return 0L;
+		}
+		final Method write = getMethod(write__, WRITE_METHOD, os.getClass());
+		if(write == null) {
+			return 0L;
+		}
+		final long length = Math.min(mappable, MAX_MAPPED_WRITE_LENGTH);
+		return invoke(write__, write, os, channel.map(READ_ONLY, position,
+			length)) ? length : 0L;
+	}
+	
+	/**
+	 * Copies the given region of the file to the given stream, through a
+	 * pooled buffer.  Unlike {@link #send(FileChannel, long, long,
+	 * OutputStream)} the stream is never closed, and more can be written
+	 * to it afterwards.
+	 */
+	public static final void copy(final FileChannel channel,
+		final long position, final long count, final OutputStream os)
+		throws IOException {
+		final byte[] buffer = borrowBuffer();
+		try {
+			final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+			long offset = position;
+			long remaining = count;
+			while(remaining > 0L) {
+				wrapped.clear();
+				wrapped.limit((int)Math.min(buffer.length, remaining));
+				final int read = channel.read(wrapped, offset);
+				if(read < 0) {
+					throw new IOException("Unexpected end of file at " +
+						"position " + offset + ", " + remaining + "-bytes " +
+						"short.");
+				}
+				os.write(buffer, 0, read);
+				offset += read;
+				remaining -= read;
+			}
+		} finally {
+			returnBuffer(buffer);
+		}
+	}
+	
+	/**
+	 * Invokes the given method of the stream with the given buffer.
+	 * Returns false if the method can't be invoked, in which case it's
+	 * forgotten about.
+	 */
+	private static final boolean invoke(
+		final ConcurrentMap<Class<?>, Method[]> methods, final Method method,
+		final OutputStream os, final ByteBuffer buffer) throws IOException {
+		try {
+			method.invoke(os, buffer);
+			return true;
+		} catch (InvocationTargetException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Failed to send mapped content.",
+				e.getCause());
+		} catch (IllegalAccessException e) {
+			// Should not happen for a public method; forget about it and
+			// copy instead.
+			logger__.debug("Cannot invoke " + method, e);
+			methods.put(os.getClass(), new Method[]{null});
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the public method with the given name, taking a single
+	 * ByteBuffer, of the given output stream class; or null if it has none.
+	 */
+	private static final Method getMethod(
+		final ConcurrentMap<Class<?>, Method[]> methods, final String name,
+		final Class<?> clazz) {
+		Method[] method = methods.get(clazz);
+		if(method == null) {
+			Method found = null;
+			try {
+				found = clazz.getMethod(name, ByteBuffer.class);
+				logger__.info("Using container '" + name + "' for object " +
+					"downloads (class=" + clazz.getName() + ")");
+			} catch (NoSuchMethodException e) {
+				logger__.debug("No container '" + name + "' found, " +
+					"copying object downloads (class=" + clazz.getName() +
+					")");
+			}
+			methods.putIfAbsent(clazz, method = new Method[]{found});
+		}
+		return method[0];
+	}
+	
+	static final byte[] borrowBuffer() {
+		final byte[] buffer = buffers__.poll();
+		if(buffer != null) {
+			pooled__.decrementAndGet();
+			return buffer;
+		}
+		return new byte[BUFFER_SIZE];
+	}
+	
+	static final void returnBuffer(final byte[] buffer) {
+		// Beyond the cap, let the buffer go to the garbage collector.
+		if(pooled__.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+			buffers__.offer(buffer);
+		} else {
+			pooled__.decrementAndGet();
+		}
+	}
+	
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.hash.Hashing.sha1;
+import static com.kolich.havalo.io.ObjectTransfer.borrowBuffer;
+import static com.kolich.havalo.io.ObjectTransfer.returnBuffer;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashingOutputStream;
+import com.kolich.havalo.exceptions.objects.ObjectTooLargeException;
+
+/**
+ * Receives the body of an object upload into a temporary file, or into
+ * memory for small objects, computing the SHA-1 hash of the object along
+ * the way.  The temporary file optionally holds the object gzip'ed, in
+ * which case the SHA-1 hash of the compressed file is computed too (see
+ * {@link #getCompressedSha1()}).  Exactly one of {@link #success(String)} or
+ * {@link #failure(Throwable)} is called once the upload is done; the
+ * temporary file is deleted afterwards, so the implementation of
+ * {@link #success(String)} is expected to move it into place.
+ */
+public abstract class ObjectUpload {
+	
+	private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+	
+	private final File tempFile_;
+	private final long length_;
+	
+	private final FileChannel channel_;
+	
+	/**
+	 * The gzip'ed temp file, and the hash of what's written to it, if the
+	 * object is compressed as it's received.
+	 */
+	private final OutputStream compressed_;
+	private final HashingOutputStream compressedHasher_;
+	
+	/**
+	 * The object itself, if it's received into memory.
+	 */
+	private final byte[] value_;
+	
+	private final Hasher hasher_;
+	private final AtomicBoolean done_;
+	
+	/**
+	 * Borrowed on the first read, and returned to the pool once done.
+	 */
+	private byte[] buffer_ = null;
+	
+	private long received_ = 0L;
+	
+	private String compressedSha1_ = null;
+	
+	/**
+	 * @param tempFile the file to receive the object into, should be
+	 * unique to this upload; or null to receive the object into memory
+	 * (see {@link #getValue()}), only meant for small objects
+	 * @param length the expected length of the object, as sent by the
+	 * consumer with the Content-Length request header
+	 * @param compress true to gzip the object into the temp file as it's
+	 * received
+	 */
+	public ObjectUpload(final File tempFile, final long length,
+		final boolean compress) throws IOException {
+		tempFile_ = tempFile;
+		length_ = length;
+		if(tempFile_ != null && compress) {
+			channel_ = null;
+			compressedHasher_ = new HashingOutputStream(sha1(),
+				new FileOutputStream(tempFile_));
+			compressed_ = new GZIPOutputStream(compressedHasher_,
+				COMPRESSION_BUFFER_SIZE);
+			value_ = null;
+		} else if(tempFile_ != null) {
+			channel_ = new FileOutputStream(tempFile_).getChannel();
+			compressed_ = compressedHasher_ = null;
+			value_ = null;
+		} else {
+			checkArgument(length <= Integer.MAX_VALUE, "Object is too " +
+				"large to be received into memory: " + length);
+			channel_ = null;
+			compressed_ = compressedHasher_ = null;
+			value_ = new byte[(int)length];
+		}
+		hasher_ = sha1().newHasher();
+		done_ = new AtomicBoolean(false);
+	}
+	
+	public ObjectUpload(final File tempFile, final long length)
+		throws IOException {
+		this(tempFile, length, false);
+	}
+	
+	/**
+	 * Returns the object received into memory, or null if it was received
+	 * into a temp file.  Only complete once {@link #success(String)} is
+	 * called.
+	 */
+	protected final byte[] getValue() {
+		return value_;
+	}
+	
+	/**
+	 * Returns the hex encoded SHA-1 hash of the gzip'ed temp file, or null
+	 * if the object was not compressed.  Only available once
+	 * {@link #success(String)} is called.
+	 */
+	protected final String getCompressedSha1() {
+		return compressedSha1_;
+	}
+	
+	/**
+	 * Called once the entire object was received into the temp file,
+	 * with the hex encoded SHA-1 hash of the object.
+	 */
+	public abstract void success(final String sha1) throws Exception;
+	
+	/**
+	 * Called if the upload, or {@link #success(String)}, failed.
+	 */
+	public abstract void failure(final Throwable cause);
+	
+	/**
+	 * Receives the upload with blocking reads, on the calling thread.
+	 */
+	public final void receive(final InputStream is) {
+		try {
+			buffer_ = borrowBuffer();
+			int read;
+			while((read = is.read(buffer_)) != -1) {
+				consume(read);
+			}
+			done(null);
+		} catch (Throwable t) {
+			done(t);
+		}
+	}
+	
+	/**
+	 * Receives the upload with non-blocking (Servlet 3.1) reads: the body
+	 * is read by container threads whenever more of it is available, and
+	 * no thread is held while waiting on a slow consumer.  Returns
+	 * immediately.
+	 */
+	public final void receiveAsync(final ServletInputStream is) {
+		is.setReadListener(new Reader(is));
+	}
+	
+	private final void consume(final int read) throws IOException {
+		// Stop as soon as the object grows beyond the length the consumer
+		// said it would be, that length was checked against the max upload
+		// size allowed.
+		if(received_ + read > length_) {
+			throw new ObjectTooLargeException("The size of the incoming " +
+				"object is larger than its Content-Length of " + length_ +
+				"-bytes.");
+		}
+		hasher_.putBytes(buffer_, 0, read);
+		if(value_ != null) {
+			System.arraycopy(buffer_, 0, value_, (int)received_, read);
+		} else if(compressed_ != null) {
+			compressed_.write(buffer_, 0, read);
+		} else {
+			final ByteBuffer wrapped = ByteBuffer.wrap(buffer_, 0, read);
+			while(wrapped.hasRemaining()) {
+				channel_.write(wrapped);
+			}
+		}
+		received_ += read;
+	}
+	
+	private final void done(final Throwable failure) {
+		if(!done_.compareAndSet(false, true)) {
+			return;
+		}
+		closeQuietly(channel_);
+		if(buffer_ != null) {
+			returnBuffer(buffer_);
+			// The buffer belongs to the pool again, and may be handed out
+			// to another transfer at any time.
+			buffer_ = null;
+		}
+		try {
+			Throwable cause = failure;
+			if(cause == null && received_ < length_) {
+				cause = new EOFException("Upload ended after " + received_ +
+					"-bytes, expected " + length_ + "-bytes.");
+			}
+			if(compressed_ != null) {
+				if(cause == null) {
+					// Writes the gzip trailer, which must make it to disk.
+					try {
+						compressed_.close();
+						compressedSha1_ = compressedHasher_.hash().toString();
+					} catch (IOException e) {
+						cause = e;
+					}
+				} else {
+					closeQuietly(compressed_);
+				}
+			}
+			if(cause == null) {
+				try {
+					success(hasher_.hash().toString());
+				} catch (Throwable t) {
+					failure(t);
+				}
+			} else {
+				failure(cause);
+			}
+		} finally {
+			// A successful upload was moved into place by now, in which
+			// case this is a no-op.
+			if(tempFile_ != null) {
+				deleteQuietly(tempFile_);
+			}
+		}
+	}
+	
+	private final class Reader implements ReadListener {
+		
+		private final ServletInputStream is_;
+		
+		private Reader(final ServletInputStream is) {
+			is_ = is;
+		}
+		
+		@Override
+		public void onDataAvailable() throws IOException {
+			if(done_.get()) {
+				// Failed early, e.g., too large; ignore the rest.
+				return;
+			}
+			if(buffer_ == null) {
+				buffer_ = borrowBuffer();
+			}
+			// Only read while data is available without blocking; the
+			// container calls again once there's more.
+			int read;
+			while(is_.isReady() && (read = is_.read(buffer_)) != -1) {
+				try {
+					consume(read);
+				} catch (Exception e) {
+					done(e);
+					return;
+				}
+			}
+		}
+		
+		@Override
+		public void onAllDataRead() {
+			done(null);
+		}
+		
+		@Override
+		public void onError(final Throwable t) {
+			done(t);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.codecs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.zip.Deflater.BEST_COMPRESSION;
+import static java.util.zip.Deflater.NO_COMPRESSION;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Compresses meta data with a raw zlib stream at a configurable level.
+ */
+public final class DeflateMetaCodec extends MetaCodec {
+	
+	private static final int BUFFER_SIZE = 8192;
+	
+	private final int level_;
+	
+	public DeflateMetaCodec(final int level) {
+		checkArgument(level >= NO_COMPRESSION && level <= BEST_COMPRESSION,
+			"Deflate level must be between " + NO_COMPRESSION + " and " +
+				BEST_COMPRESSION + ", was: " + level);
+		level_ = level;
+	}
+	
+	@Override
+	public int getId() {
+		return DEFLATE_ID;
+	}
+	
+	@Override
+	public OutputStream compress(final OutputStream os) {
+		return new DeflaterOutputStream(new CloseShieldOutputStream(os),
+			new Deflater(level_), BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				// The Deflater is ours, so it's up to us to release its
+				// native resources.
+				try {
+					super.close();
+				} finally {
+					def.end();
+				}
+			}
+		};
+	}
+	
+	@Override
+	public InputStream decompress(final InputStream is) {
+		return new InflaterInputStream(is, new Inflater(), BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inf.end();
+				}
+			}
+		};
+	}
+	
+	@Override
+	public String toString() {
+		return DEFLATE + "(level=" + level_ + ")";
+	}
+	
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.codecs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A fast, pure Java, LZ77 family codec in the spirit of LZ4.  It trades
+ * compression ratio for speed: there is no entropy coding, only literal
+ * runs and back references into the current block.
+ * 
+ * The stream is a sequence of blocks of at most {@link #BLOCK_SIZE}
+ * bytes of input each, where every block is written as its raw length,
+ * a flag telling whether the block is compressed or stored as is, and,
+ * if compressed, its compressed length followed by the compressed bytes.
+ * A block with a raw length of zero marks the end of the stream.
+ * 
+ * A compressed block is a sequence of tokens.  The high nibble of each
+ * token is the length of the literal run that follows it, and the low
+ * nibble is the length of the match that follows the literals, minus
+ * {@link #MIN_MATCH}.  A nibble of 15 means more length bytes follow,
+ * each adding up to 255.  A match is written as a 2-byte, little endian,
+ * offset back into the block.  The last token of a block only carries
+ * literals.
+ */
+public final class LZMetaCodec extends MetaCodec {
+	
+	private static final int BLOCK_SIZE = 64 * 1024;
+	
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 0xFFFF;
+	
+	private static final int HASH_LOG = 14;
+	
+	private static final int STORED = 0;
+	private static final int COMPRESSED = 1;
+	
+	@Override
+	public int getId() {
+		return LZ_ID;
+	}
+	
+	@Override
+	public OutputStream compress(final OutputStream os) {
+		return new LZOutputStream(os);
+	}
+	
+	@Override
+	public InputStream decompress(final InputStream is) {
+		return new LZInputStream(is);
+	}
+	
+	@Override
+	public String toString() {
+		return LZ;
+	}
+	
+	private static final int maxCompressedLength(final int length) {
+		return length + (length / 255) + 16;
+	}
+	
+	private static final int readInt(final byte[] b, final int i) {
+		return (b[i] & 0xFF) | ((b[i+1] & 0xFF) << 8) |
+			((b[i+2] & 0xFF) << 16) | ((b[i+3] & 0xFF) << 24);
+	}
+	
+	private static final int hash(final int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+	
+	/**
+	 * Compresses the given block into the given destination, which must
+	 * hold at least {@link #maxCompressedLength(int)} bytes.
+	 * @return the compressed length
+	 */
+	private static final int compressBlock(final byte[] src, final int length,
+		final byte[] dst, final int[] table) {
+		Arrays.fill(table, -1);
+		int ip = 0, anchor = 0, op = 0;
+		final int limit = length - MIN_MATCH;
+		while(ip <= limit) {
+			final int sequence = readInt(src, ip);
+			final int h = hash(sequence);
+			final int ref = table[h];
+			table[h] = ip;
+			if(ref < 0 || ip - ref > MAX_OFFSET ||
+				readInt(src, ref) != sequence) {
+				++ip;
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while(ip + matchLength < length &&
+				src[ref + matchLength] == src[ip + matchLength]) {
+				++matchLength;
+			}
+			final int literals = ip - anchor;
+			final int extra = matchLength - MIN_MATCH;
+			dst[op++] = (byte)((Math.min(literals, 15) << 4) |
+				Math.min(extra, 15));
+			op = writeLength(dst, op, literals);
+			System.arraycopy(src, anchor, dst, op, literals);
+			op += literals;
+			final int offset = ip - ref;
+			dst[op++] = (byte)offset;
+			dst[op++] = (byte)(offset >>> 8);
+			op = writeLength(dst, op, extra);
+			ip += matchLength;
+			anchor = ip;
+		}
+		final int literals = length - anchor;
+		dst[op++] = (byte)(Math.min(literals, 15) << 4);
+		op = writeLength(dst, op, literals);
+		System.arraycopy(src, anchor, dst, op, literals);
+		return op + literals;
+	}
+	
+	private static final int writeLength(final byte[] dst, int op,
+		final int length) {
+		if(length >= 15) {
+			int remaining = length - 15;
+			while(remaining >= 255) {
+				dst[op++] = (byte)255;
+				remaining -= 255;
+			}
+			dst[op++] = (byte)remaining;
+		}
+		return op;
+	}
+	
+	private static final void decompressBlock(final byte[] src,
+		final int length, final byte[] dst, final int rawLength)
+		throws IOException {
+		int ip = 0, op = 0;
+		try {
+			while(true) {
+				final int token = src[ip++] & 0xFF;
+				int literals = token >>> 4;
+				if(literals == 15) {
+					int b;
+					do {
+						literals += (b = src[ip++] & 0xFF);
+					} while(b == 255);
+				}
+				if(ip + literals > length || op + literals > rawLength) {
+					throw new IOException("Corrupt LZ block: literal " +
+						"run out of bounds.");
+				}
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+				if(op == rawLength) {
+					break;
+				}
+				final int offset = (src[ip++] & 0xFF) |
+					((src[ip++] & 0xFF) << 8);
+				int matchLength = token & 0x0F;
+				if(matchLength == 15) {
+					int b;
+					do {
+						matchLength += (b = src[ip++] & 0xFF);
+					} while(b == 255);
+				}
+				matchLength += MIN_MATCH;
+				int ref = op - offset;
+				if(offset == 0 || ref < 0 || op + matchLength > rawLength) {
+					throw new IOException("Corrupt LZ block: match " +
+						"out of bounds.");
+				}
+				// Byte by byte, a match can overlap the bytes it produces.
+				for(int i = 0; i < matchLength; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt LZ block: truncated.", e);
+		}
+		if(ip != length) {
+			throw new IOException("Corrupt LZ block: trailing bytes.");
+		}
+	}
+	
+	private static final class LZOutputStream extends FilterOutputStream {
+		
+		private final DataOutputStream out_;
+		private final byte[] block_;
+		private final byte[] compressed_;
+		private final int[] table_;
+		private int position_;
+		private boolean closed_;
+		
+		private LZOutputStream(final OutputStream os) {
+			super(os);
+			out_ = new DataOutputStream(os);
+			block_ = new byte[BLOCK_SIZE];
+			compressed_ = new byte[maxCompressedLength(BLOCK_SIZE)];
+			table_ = new int[1 << HASH_LOG];
+			position_ = 0;
+			closed_ = false;
+		}
+		
+		@Override
+		public void write(final int b) throws IOException {
+			if(position_ == BLOCK_SIZE) {
+				writeBlock();
+			}
+			block_[position_++] = (byte)b;
+		}
+		
+		@Override
+		public void write(final byte[] b, int off, int len)
+			throws IOException {
+			while(len > 0) {
+				if(position_ == BLOCK_SIZE) {
+					writeBlock();
+				}
+				final int n = Math.min(len, BLOCK_SIZE - position_);
+				System.arraycopy(b, off, block_, position_, n);
+				position_ += n;
+				off += n;
+				len -= n;
+			}
+		}
+		
+		private void writeBlock() throws IOException {
+			if(position_ == 0) {
+				return;
+			}
+			final int length = compressBlock(block_, position_, compressed_,
+				table_);
+			out_.writeInt(position_);
+			if(length < position_) {
+				out_.writeByte(COMPRESSED);
+				out_.writeInt(length);
+				out_.write(compressed_, 0, length);
+			} else {
+				// Incompressible, store it as is.
+				out_.writeByte(STORED);
+				out_.write(block_, 0, position_);
+			}
+			position_ = 0;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			writeBlock();
+			out_.flush();
+		}
+		
+		/**
+		 * Writes the end of the stream, but leaves the underlying stream
+		 * open.
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed_) {
+				closed_ = true;
+				writeBlock();
+				out_.writeInt(0);
+				out_.flush();
+			}
+		}
+		
+	}
+	
+	private static final class LZInputStream extends FilterInputStream {
+		
+		private final DataInputStream in_;
+		private final byte[] block_;
+		private byte[] compressed_;
+		private int position_;
+		private int limit_;
+		private boolean eof_;
+		
+		private LZInputStream(final InputStream is) {
+			super(is);
+			in_ = new DataInputStream(is);
+			block_ = new byte[BLOCK_SIZE];
+			compressed_ = null;
+			position_ = limit_ = 0;
+			eof_ = false;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if(!fill()) {
+				return -1;
+			}
+			return block_[position_++] & 0xFF;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+			if(len == 0) {
+				return 0;
+			} else if(!fill()) {
+				return -1;
+			}
+			final int n = Math.min(len, limit_ - position_);
+			System.arraycopy(block_, position_, b, off, n);
+			position_ += n;
+			return n;
+		}
+		
+		@Override
+		public long skip(final long n) throws IOException {
+			long skipped = 0L;
+			while(skipped < n && fill()) {
+				final int s = (int)Math.min(n - skipped, limit_ - position_);
+				position_ += s;
+				skipped += s;
+			}
+			return skipped;
+		}
+		
+		@Override
+		public int available() {
+			return limit_ - position_;
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		private boolean fill() throws IOException {
+			while(position_ == limit_) {
+				if(eof_) {
+					return false;
+				}
+				final int rawLength = in_.readInt();
+				if(rawLength == 0) {
+					eof_ = true;
+					return false;
+				} else if(rawLength < 0 || rawLength > BLOCK_SIZE) {
+					throw new IOException("Corrupt LZ stream: invalid " +
+						"block length " + rawLength);
+				}
+				final int flag = in_.readUnsignedByte();
+				if(flag == STORED) {
+					in_.readFully(block_, 0, rawLength);
+				} else if(flag == COMPRESSED) {
+					final int length = in_.readInt();
+					if(length <= 0 || length > maxCompressedLength(BLOCK_SIZE)) {
+						throw new IOException("Corrupt LZ stream: invalid " +
+							"compressed block length " + length);
+					}
+					if(compressed_ == null) {
+						compressed_ = new byte[maxCompressedLength(BLOCK_SIZE)];
+					}
+					in_.readFully(compressed_, 0, length);
+					decompressBlock(compressed_, length, block_, rawLength);
+				} else {
+					throw new IOException("Corrupt LZ stream: invalid " +
+						"block flag " + flag);
+				}
+				position_ = 0;
+				limit_ = rawLength;
+			}
+			return true;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.codecs;
+
+import static java.util.zip.Deflater.BEST_SPEED;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression codec for meta data files.  The ID of the codec used to
+ * write a file is recorded in its header, such that a file can always
+ * be read back regardless of the codec that is currently configured.
+ */
+public abstract class MetaCodec {
+	
+	public static final String NONE = "none";
+	public static final String DEFLATE = "deflate";
+	public static final String LZ = "lz";
+	
+	public static final int NONE_ID = 0;
+	public static final int DEFLATE_ID = 1;
+	public static final int LZ_ID = 2;
+	
+	/**
+	 * The codec used when none is configured: fast deflate.
+	 */
+	public static final MetaCodec DEFAULT_CODEC =
+		new DeflateMetaCodec(BEST_SPEED);
+	
+	/**
+	 * The stable, on disk, identifier of this codec.
+	 */
+	public abstract int getId();
+	
+	/**
+	 * Returns a stream that compresses everything written to it into the
+	 * given stream.  Closing the returned stream finishes the compressed
+	 * data, but does not close the given stream.
+	 */
+	public abstract OutputStream compress(final OutputStream os)
+		throws IOException;
+	
+	/**
+	 * Returns a stream that decompresses the data read from the given
+	 * stream.  Closing the returned stream closes the given stream.
+	 */
+	public abstract InputStream decompress(final InputStream is)
+		throws IOException;
+	
+	/**
+	 * Returns the codec to read a file that was written with the codec
+	 * of the given ID.
+	 */
+	public static final MetaCodec getById(final int id) throws IOException {
+		switch(id) {
+		case NONE_ID:
+			return new NoCompressionMetaCodec();
+		case DEFLATE_ID:
+			// The level has no bearing on decompression.
+			return DEFAULT_CODEC;
+		case LZ_ID:
+			return new LZMetaCodec();
+		default:
+			throw new IOException("Unrecognized meta data codec: " + id);
+		}
+	}
+	
+	/**
+	 * Returns the codec with the given name, as configured.
+	 * @param name one of {@link #NONE}, {@link #DEFLATE} or {@link #LZ}
+	 * @param level the compression level, only used by {@link #DEFLATE}
+	 */
+	public static final MetaCodec getByName(final String name,
+		final int level) {
+		if(NONE.equalsIgnoreCase(name)) {
+			return new NoCompressionMetaCodec();
+		} else if(DEFLATE.equalsIgnoreCase(name)) {
+			return new DeflateMetaCodec(level);
+		} else if(LZ.equalsIgnoreCase(name)) {
+			return new LZMetaCodec();
+		}
+		throw new IllegalArgumentException("Unrecognized meta data " +
+			"codec: " + name);
+	}
+	
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.codecs;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Stores meta data as is.
+ */
+public final class NoCompressionMetaCodec extends MetaCodec {
+	
+	@Override
+	public int getId() {
+		return NONE_ID;
+	}
+	
+	@Override
+	public OutputStream compress(final OutputStream os) {
+		return new CloseShieldOutputStream(os);
+	}
+	
+	@Override
+	public InputStream decompress(final InputStream is) {
+		return is;
+	}
+	
+	@Override
+	public String toString() {
+		return NONE;
+	}
+	
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.managers;
+
+import static com.kolich.havalo.entities.HavaloEntity.getHavaloGsonInstance;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.kolich.havalo.entities.types.HavaloUUID;
+import com.kolich.havalo.entities.types.KeyPair;
+
+/**
+ * The key pair of every repository, held in memory in its entirety and
+ * persisted on its own, apart from the meta data of the repositories.
+ * Requests are authenticated against this index alone: an unknown access
+ * key is rejected without touching the disk, and a known one never loads
+ * the (possibly huge) object index of its repository just to find its
+ * secret.
+ */
+public final class CredentialIndex {
+	
+	private static final String CREDENTIALS_FILENAME = ".credentials";
+	private static final String CREDENTIALS_TEMP_FILENAME = ".credentials.tmp";
+	
+	private static final Type KEY_PAIR_LIST_TYPE =
+		new TypeToken<List<KeyPair>>(){}.getType();
+	
+	private final File file_;
+	private final File tempFile_;
+	
+	private final Gson gson_;
+	
+	private final ConcurrentMap<HavaloUUID, KeyPair> keyPairs_;
+	
+	public CredentialIndex(final File storeDir) {
+		file_ = new File(storeDir, CREDENTIALS_FILENAME);
+		tempFile_ = new File(storeDir, CREDENTIALS_TEMP_FILENAME);
+		gson_ = getHavaloGsonInstance();
+		keyPairs_ = new ConcurrentHashMap<HavaloUUID, KeyPair>();
+	}
+	
+	/**
+	 * Returns false if the index was never saved, e.g., for repositories
+	 * that predate it, in which case it should be rebuilt.
+	 */
+	public boolean exists() {
+		return file_.exists();
+	}
+	
+	/**
+	 * Loads the entire index from disk, replacing whatever it held.
+	 */
+	public synchronized void load() throws IOException {
+		final List<KeyPair> keyPairs = gson_.fromJson(readFileToString(file_,
+			UTF_8), KEY_PAIR_LIST_TYPE);
+		keyPairs_.clear();
+		if(keyPairs != null) {
+			for(final KeyPair kp : keyPairs) {
+				keyPairs_.put(kp.getKey(), kp);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the key pair with the given access key, or null if there's
+	 * no such key pair.  Never touches the disk.
+	 */
+	public KeyPair get(final HavaloUUID key) {
+		return keyPairs_.get(key);
+	}
+	
+	public int size() {
+		return keyPairs_.size();
+	}
+	
+	/**
+	 * Adds, or replaces, the given key pair and saves the index.
+	 */
+	public synchronized void put(final KeyPair kp) throws IOException {
+		keyPairs_.put(kp.getKey(), kp);
+		save();
+	}
+	
+	/**
+	 * Removes the key pair with the given access key, if any, and saves
+	 * the index.
+	 */
+	public synchronized void remove(final HavaloUUID key) throws IOException {
+		if(keyPairs_.remove(key) != null) {
+			save();
+		}
+	}
+	
+	/**
+	 * Replaces the entire index with the given key pairs, and saves it.
+	 */
+	public synchronized void reset(final List<KeyPair> keyPairs)
+		throws IOException {
+		keyPairs_.clear();
+		for(final KeyPair kp : keyPairs) {
+			keyPairs_.put(kp.getKey(), kp);
+		}
+		save();
+	}
+	
+	/**
+	 * Writes the index next to its file, and moves it into place, such
+	 * that a crash never leaves a torn index behind.
+	 */
+	private void save() throws IOException {
+		writeStringToFile(tempFile_, gson_.toJson(new ArrayList<KeyPair>(
+			keyPairs_.values()), KEY_PAIR_LIST_TYPE), UTF_8);
+		Files.move(tempFile_.toPath(), file_.toPath(), ATOMIC_MOVE,
+			REPLACE_EXISTING);
+	}
+	
+}
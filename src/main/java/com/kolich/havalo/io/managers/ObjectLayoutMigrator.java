@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.managers;
+
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.kolich.bolt.ReentrantReadWriteEntityLock;
+import com.kolich.havalo.entities.types.HashedFileObject;
+import com.kolich.havalo.entities.types.Repository;
+
+/**
+ * Moves the objects of a repository to the configured object layout in
+ * the background, one object at a time, while the repository stays
+ * online.  Objects that have yet to be moved are found under their old
+ * location by readers in the meantime (see
+ * {@link RepositoryManager#migrateObject(Repository, HashedFileObject)}).
+ * Once every object was visited, the repository is marked as using the
+ * configured layout, and is never visited again.
+ */
+public final class ObjectLayoutMigrator {
+	
+	private static final Logger logger__ =
+		getLogger(ObjectLayoutMigrator.class);
+	
+	private final RepositoryManager manager_;
+	private final ExecutorService migratorPool_;
+	
+	/**
+	 * The keys of the repositories queued for, or being, migrated.
+	 */
+	private final Set<String> queued_;
+	
+	public ObjectLayoutMigrator(final RepositoryManager manager) {
+		manager_ = manager;
+		queued_ = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+		migratorPool_ = newSingleThreadExecutor(
+			new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("havalo-layout-migrator-%s")
+				.setPriority(Thread.MIN_PRIORITY)
+				.build());
+	}
+	
+	/**
+	 * Queues the given repository to be migrated, unless it's already
+	 * queued.
+	 */
+	public void queue(final Repository repo) {
+		if(!queued_.add(repo.getKey())) {
+			return;
+		}
+		migratorPool_.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					migrate(repo);
+				} catch (Exception e) {
+					logger__.error("Failed to migrate repository " +
+						"objects (id=" + repo.getRepoId() + ")", e);
+				} finally {
+					queued_.remove(repo.getKey());
+				}
+			}
+		});
+	}
+	
+	private void migrate(final Repository repo) throws Exception {
+		logger__.info("Migrating repository objects to the " +
+			manager_.getObjectLayout() + " layout (id=" +
+			repo.getRepoId() + ")");
+		long moved = 0L, failed = 0L;
+		for(final HashedFileObject hfo : repo.getObjects()) {
+			try {
+				if(migrate(repo, hfo)) {
+					moved++;
+				}
+			} catch (Exception e) {
+				logger__.warn("Failed to migrate object (id=" +
+					repo.getRepoId() + ", key=" + hfo.getName() + ")", e);
+				failed++;
+			}
+		}
+		if(failed > 0L) {
+			// Leave the repository unmarked, such that the remaining
+			// objects are retried the next time the repository is loaded.
+			logger__.warn("Migrated " + moved + "-objects, failed to " +
+				"migrate " + failed + "-objects (id=" + repo.getRepoId() +
+				")");
+			return;
+		}
+		new ReentrantReadWriteEntityLock<Void>(repo) {
+			@Override
+			public Void transaction() throws Exception {
+				// The repository may have been deleted in the meantime.
+				if(repo.getFile().exists()) {
+					manager_.markObjectLayout(repo);
+				}
+				return null;
+			}
+		}.read(true); // Shared reader lock on repo, wait
+		logger__.info("Migrated " + moved + "-objects to the " +
+			manager_.getObjectLayout() + " layout (id=" +
+			repo.getRepoId() + ")");
+	}
+	
+	private boolean migrate(final Repository repo,
+		final HashedFileObject hfo) throws Exception {
+		return new ReentrantReadWriteEntityLock<Boolean>(repo) {
+			@Override
+			public Boolean transaction() throws Exception {
+				// Skip objects that were deleted (or replaced by a new
+				// object under the same key, which is already laid out
+				// right) since the listing was taken.
+				if(repo.getObject(hfo.getName()) != hfo) {
+					return false;
+				}
+				return new ReentrantReadWriteEntityLock<Boolean>(hfo) {
+					@Override
+					public Boolean transaction() throws Exception {
+						return manager_.migrateObject(repo, hfo);
+					}
+				}.write(true); // Exclusive lock on object, wait
+			}
+		}.read(true); // Shared reader lock on repo, wait
+	}
+	
+}
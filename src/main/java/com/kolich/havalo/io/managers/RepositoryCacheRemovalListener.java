@@ -26,6 +26,10 @@
 
 package com.kolich.havalo.io.managers;
 
+import static com.google.common.cache.RemovalCause.REPLACED;
+
+import java.util.concurrent.ConcurrentMap;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +38,7 @@ import com.google.common.cache.RemovalNotification;
 import com.kolich.havalo.entities.types.HavaloUUID;
 import com.kolich.havalo.entities.types.Repository;
 import com.kolich.havalo.exceptions.repositories.RepositoryFlushException;
+import com.kolich.havalo.io.stores.SegmentStore;
 
 public final class RepositoryCacheRemovalListener
 	implements RemovalListener<HavaloUUID,Repository> {
@@ -49,12 +54,21 @@ public final class RepositoryCacheRemovalListener
 	
 	private final RepositoryMetaWriter metaWriter_;
 	
-	public RepositoryCacheRemovalListener(final RepositoryMetaWriter metaWriter) {
+	private final ConcurrentMap<Repository, SegmentStore> segments_;
+	
+	public RepositoryCacheRemovalListener(final RepositoryMetaWriter metaWriter,
+		final ConcurrentMap<Repository, SegmentStore> segments) {
 		metaWriter_ = metaWriter;
+		segments_ = segments;
 	}
 
 	@Override
 	public void onRemoval(final RemovalNotification<HavaloUUID,Repository> removed) {
+		// The repository was put back in the cache only to be weighed
+		// again, it's still very much loaded.
+		if(removed.getCause() == REPLACED) {
+			return;
+		}
 		Repository repo = null;
 		try {
 			// The repo that was "evicted" could be null if it was
@@ -68,8 +82,18 @@ public final class RepositoryCacheRemovalListener
 				// we should not attempt to flush the meta data for it
 				// to disk -- the underlying repository has been deleted.
 				if(repo.getFile().exists()) {
-					// Queue the repository to be flushed to disk.
+					// Queue the repository to be flushed to disk.  The
+					// pending flush holds on to the repository until it's
+					// done, so if it's needed again before then, the
+					// repository manager picks this very copy back up
+					// instead of loading a stale one from disk.
 					metaWriter_.queue(repo);
+					// Let go of the file handle of its active segment, if
+					// any, which is opened again on the next append.
+					final SegmentStore segments = segments_.get(repo);
+					if(segments != null) {
+						segments.close();
+					}
 				} else {
 					logger__.debug("Not flushing repo meta " +
 						"data, underlying repo directory is " +
@@ -29,14 +29,43 @@ package com.kolich.havalo.io.managers;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.net.HttpHeaders.ETAG;
 import static com.kolich.common.util.secure.KolichChecksum.getSHA256Hash;
+import static com.kolich.havalo.io.codecs.MetaCodec.DEFAULT_CODEC;
+import static com.kolich.havalo.io.managers.RepositoryMetaWriter.DEFAULT_FLUSH_DELAY_MS;
+import static com.kolich.havalo.io.managers.RepositoryMetaWriter.DEFAULT_MAX_DIRTY_MS;
 import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.lang.Math.min;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.io.FileUtils.forceMkdir;
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static org.apache.commons.io.FileUtils.writeStringToFile;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.kolich.bolt.ReentrantReadWriteEntityLock;
 import com.kolich.bolt.exceptions.LockConflictException;
 import com.kolich.havalo.entities.types.DiskObject;
@@ -44,6 +73,8 @@ import com.kolich.havalo.entities.types.HashedFileObject;
 import com.kolich.havalo.entities.types.HavaloUUID;
 import com.kolich.havalo.entities.types.KeyPair;
 import com.kolich.havalo.entities.types.Repository;
+import com.kolich.havalo.entities.types.SegmentPointer;
+import com.kolich.havalo.exceptions.BootstrapException;
 import com.kolich.havalo.exceptions.objects.ObjectConflictException;
 import com.kolich.havalo.exceptions.objects.ObjectDeletionException;
 import com.kolich.havalo.exceptions.objects.ObjectLoadException;
@@ -51,40 +82,284 @@ import com.kolich.havalo.exceptions.objects.ObjectNotFoundException;
 import com.kolich.havalo.exceptions.repositories.DuplicateRepositoryException;
 import com.kolich.havalo.exceptions.repositories.RepositoryCreationException;
 import com.kolich.havalo.exceptions.repositories.RepositoryDeletionException;
+import com.kolich.havalo.exceptions.repositories.RepositoryFlushException;
 import com.kolich.havalo.exceptions.repositories.RepositoryLoadException;
 import com.kolich.havalo.exceptions.repositories.RepositoryNotFoundException;
+import com.kolich.havalo.io.codecs.MetaCodec;
+import com.kolich.havalo.io.stores.BlobStore;
+import com.kolich.havalo.io.stores.ObjectLayout;
 import com.kolich.havalo.io.stores.ObjectStore;
+import com.kolich.havalo.io.stores.SegmentStore;
 
 public final class RepositoryManager extends ObjectStore {
+	
+	private static final Logger logger__ =
+		LoggerFactory.getLogger(RepositoryManager.class);
+	
+	/**
+	 * The default max number of records in the mutation log of a
+	 * repository before it is compacted into a fresh snapshot.
+	 */
+	public static final long DEFAULT_MAX_LOG_RECORDS = 100000L;
+	
+	/**
+	 * The default max size, in bytes, of the mutation log of a
+	 * repository before it is compacted into a fresh snapshot.
+	 */
+	public static final long DEFAULT_MAX_LOG_SIZE = 16L * 1024L * 1024L;
+	
+	public static final ObjectLayout DEFAULT_OBJECT_LAYOUT =
+		ObjectLayout.FANOUT;
+	
+	/**
+	 * The default max size, in bytes, of an object stored in a packed
+	 * segment instead of a file of its own.
+	 */
+	public static final long DEFAULT_MAX_SEGMENTED_OBJECT_SIZE = 4096L;
+	
+	/**
+	 * The default size, in bytes, beyond which a packed segment is sealed
+	 * and a new one is started.
+	 */
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024L * 1024L;
+	
+	/**
+	 * The default fraction of a sealed segment that must be garbage before
+	 * it's collected.
+	 */
+	public static final double DEFAULT_SEGMENT_GARBAGE_RATIO = 0.5d;
+	
+	/**
+	 * The default max size, in bytes, of an object stored inline, in the
+	 * in-memory index of its repository.
+	 */
+	public static final long DEFAULT_MAX_INLINE_OBJECT_SIZE = 256L;
+	
+	/**
+	 * The default max total size, in bytes, of the objects stored inline
+	 * in a single repository.
+	 */
+	public static final long DEFAULT_MAX_INLINE_REPOSITORY_SIZE =
+		4L * 1024L * 1024L;
+	
+	public static final boolean DEFAULT_DEDUPLICATION = false;
+	
+	/**
+	 * By default, the repository cache is unbounded and never expires.
+	 */
+	public static final long DEFAULT_MAX_CACHED_OBJECTS = 0L;
+	public static final long DEFAULT_CACHE_EXPIRE_AFTER_ACCESS_MS = 0L;
+	
+	/**
+	 * The default max number of repositories loaded from disk at once.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_LOADS = 4;
+	
+	/**
+	 * The max number of repository IDs remembered as not found, and for
+	 * how long, such that lookups of bogus IDs don't hit the disk every
+	 * time.
+	 */
+	private static final long MAX_UNKNOWN_REPOSITORIES = 10000L;
+	private static final long UNKNOWN_REPOSITORY_EXPIRY_MS = 30000L;
+	
+	/**
+	 * The file, inside of a repository directory, that records the layout
+	 * of the objects in the repository.  Repositories without one predate
+	 * the choice of layouts, and use the {@link ObjectLayout#SPLIT} layout.
+	 */
+	private static final String LAYOUT_MARKER_FILENAME = ".layout";
+	private static final String LAYOUT_MARKER_TEMP_FILENAME = ".layout.tmp";
+	
+	/**
+	 * The directory, inside of a repository directory, that holds the
+	 * packed segments of the repository.
+	 */
+	private static final String SEGMENTS_DIRNAME = ".segments";
+	
+	/**
+	 * The directory, inside of a repository directory, that holds the
+	 * content addressed blobs of the repository.
+	 */
+	private static final String BLOBS_DIRNAME = ".blobs";
+	
+	/**
+	 * The number of times a move of an object file is attempted, when
+	 * racing with the removal of empty directories by another move.
+	 */
+	private static final int MAX_MOVE_ATTEMPTS = 3;
 			
 	private final RepositoryMetaStore metaStore_;
 	private final RepositoryMetaWriter metaWriter_;
 	
+	private final CredentialIndex credentials_;
+	
+	private final ObjectLayout objectLayout_;
+	private final ObjectLayoutMigrator layoutMigrator_;
+	
+	private final long maxLogRecords_;
+	private final long maxLogSize_;
+	
+	private final long maxSegmentedObjectSize_;
+	private final long maxSegmentSize_;
+	private final double segmentGarbageRatio_;
+	private final SegmentCollector segmentCollector_;
+	
+	private final long maxInlineObjectSize_;
+	private final long maxInlineRepositorySize_;
+	
+	private final boolean deduplication_;
+	
+	private final long maxCachedObjects_;
+	
+	/**
+	 * The content addressed blobs of each repository, keyed by repository
+	 * (by identity, weakly), such that they go away along with the
+	 * repository once it's unloaded.
+	 */
+	private final ConcurrentMap<Repository, BlobStore> blobs_;
+	
+	/**
+	 * The packed segments of each repository, keyed by repository (by
+	 * identity, weakly).
+	 */
+	private final ConcurrentMap<Repository, SegmentStore> segments_;
+	
 	/**
 	 * Internal in-memory cache to cache a mapping of a {@link HavaloUUID}
-	 * to its corresponding {@link Repository}.
+	 * to its corresponding {@link Repository}.  Bounded by the total number
+	 * of objects indexed by the cached repositories, and by idle time.
 	 */
 	private final Cache<HavaloUUID, Repository> repositories_;
+	
+	/**
+	 * Every repository still reachable in memory, weakly referenced, which
+	 * includes those evicted from the cache above that are still in use
+	 * (e.g., by an in-flight request, or a pending flush).  A repository
+	 * is only ever loaded from disk when it's no longer in here, such that
+	 * there's never more than one copy of a repository in memory.
+	 */
+	private final Cache<HavaloUUID, Repository> instances_;
+	
+	/**
+	 * Negative cache of the IDs of repositories that were looked for, and
+	 * not found, on disk.  Bounded, and short lived: a repository created
+	 * in the meantime is removed from it right away.
+	 */
+	private final Cache<HavaloUUID, Boolean> unknownRepositories_;
+	
+	/**
+	 * Bounds the number of repositories read from disk at once, such that
+	 * a cold start doesn't stampede the disk.
+	 */
+	private final Semaphore loadPermits_;
+	
+	/**
+	 * Loads repositories in the background for {@link #getRepositoryAsync},
+	 * and the loads in flight, keyed by repository ID.
+	 */
+	private final ExecutorService loaderPool_;
+	private final ConcurrentMap<HavaloUUID, CompletableFuture<Repository>> loading_;
 		
-	public RepositoryManager(final File objectDir, final int maxFileNameLength) {
+	public RepositoryManager(final File objectDir, final int maxFileNameLength,
+		final long maxLogRecords, final long maxLogSize,
+		final long flushDelay, final long flushMaxDirty,
+		final MetaCodec metaCodec, final ObjectLayout objectLayout,
+		final long maxSegmentedObjectSize, final long maxSegmentSize,
+		final double segmentGarbageRatio, final long maxInlineObjectSize,
+		final long maxInlineRepositorySize, final boolean deduplication,
+		final long maxCachedObjects, final long cacheExpireAfterAccess,
+		final int maxConcurrentLoads) {
 		// Set the directory that will physicially store the repositories.
 		super(objectDir, maxFileNameLength);
+		maxLogRecords_ = maxLogRecords;
+		maxLogSize_ = maxLogSize;
+		objectLayout_ = checkNotNull(objectLayout,
+			"Object layout cannot be null.");
+		layoutMigrator_ = new ObjectLayoutMigrator(this);
+		maxSegmentedObjectSize_ = maxSegmentedObjectSize;
+		maxSegmentSize_ = maxSegmentSize;
+		segmentGarbageRatio_ = segmentGarbageRatio;
+		segmentCollector_ = new SegmentCollector(this, segmentGarbageRatio);
+		segments_ = CacheBuilder.newBuilder().weakKeys()
+			.<Repository, SegmentStore>build().asMap();
+		maxInlineObjectSize_ = maxInlineObjectSize;
+		maxInlineRepositorySize_ = maxInlineRepositorySize;
+		deduplication_ = deduplication;
+		maxCachedObjects_ = maxCachedObjects;
+		blobs_ = CacheBuilder.newBuilder().weakKeys()
+			.<Repository, BlobStore>build().asMap();
 		// Setup the meta store that's used to store meta data about each
 		// repository on disk.  The root of the repository meta data store
 		// is always the same as the repository root.
-		metaStore_ = new RepositoryMetaStore(storeDir_);
+		metaStore_ = new RepositoryMetaStore(storeDir_, metaCodec);
 		// Setup the meta store writer for this repository.
-		metaWriter_ = new RepositoryMetaWriter(metaStore_);
+		metaWriter_ = new RepositoryMetaWriter(metaStore_, flushDelay,
+			flushMaxDirty) {
+			@Override
+			protected void beforeSave(final Repository repo)
+				throws Exception {
+				forceSegments(repo);
+			}
+		};
+		loadPermits_ = new Semaphore(maxConcurrentLoads);
+		loaderPool_ = newFixedThreadPool(maxConcurrentLoads,
+			new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("havalo-repository-loader-%s")
+				.build());
+		loading_ = new ConcurrentHashMap<HavaloUUID, CompletableFuture<Repository>>();
+		// Load the key pairs of all repositories up front, authentication
+		// only ever looks at these.
+		credentials_ = new CredentialIndex(storeDir_);
+		loadCredentials();
 		// Setup the in-memory repository cache.
-		repositories_ = CacheBuilder.newBuilder()
-			//.maximumSize(maxRepositoryCacheSize_)
-			//.expireAfterAccess(hoursTillCacheEviction_, TimeUnit.HOURS)
-			.removalListener(new RepositoryCacheRemovalListener(metaWriter_))
+		final CacheBuilder<HavaloUUID, Repository> cacheBuilder =
+			CacheBuilder.newBuilder().removalListener(
+				new RepositoryCacheRemovalListener(metaWriter_, segments_));
+		if(maxCachedObjects > 0L) {
+			cacheBuilder.maximumWeight(maxCachedObjects).weigher(
+				new Weigher<HavaloUUID, Repository>() {
+				@Override
+				public int weigh(final HavaloUUID id, final Repository repo) {
+					// Every repository counts for at least one, even when
+					// it's empty.  Repositories are weighed as they're
+					// loaded, again whenever they've doubled in size, and
+					// as their log is compacted.
+					return (int)min(Integer.MAX_VALUE, 1L + repo.weigh());
+				}
+			});
+		}
+		if(cacheExpireAfterAccess > 0L) {
+			cacheBuilder.expireAfterAccess(cacheExpireAfterAccess,
+				MILLISECONDS);
+		}
+		repositories_ = cacheBuilder.build();
+		instances_ = CacheBuilder.newBuilder().weakValues().build();
+		unknownRepositories_ = CacheBuilder.newBuilder()
+			.maximumSize(MAX_UNKNOWN_REPOSITORIES)
+			.expireAfterWrite(UNKNOWN_REPOSITORY_EXPIRY_MS, MILLISECONDS)
 			.build();
 	}
 	
+	public RepositoryManager(final File objectDir, final int maxFileNameLength) {
+		this(objectDir, maxFileNameLength, DEFAULT_MAX_LOG_RECORDS,
+			DEFAULT_MAX_LOG_SIZE, DEFAULT_FLUSH_DELAY_MS, DEFAULT_MAX_DIRTY_MS,
+			DEFAULT_CODEC, DEFAULT_OBJECT_LAYOUT,
+			DEFAULT_MAX_SEGMENTED_OBJECT_SIZE, DEFAULT_MAX_SEGMENT_SIZE,
+			DEFAULT_SEGMENT_GARBAGE_RATIO, DEFAULT_MAX_INLINE_OBJECT_SIZE,
+			DEFAULT_MAX_INLINE_REPOSITORY_SIZE, DEFAULT_DEDUPLICATION,
+			DEFAULT_MAX_CACHED_OBJECTS, DEFAULT_CACHE_EXPIRE_AFTER_ACCESS_MS,
+			DEFAULT_MAX_CONCURRENT_LOADS);
+	}
+	
 	public Repository createRepository(final HavaloUUID id,
 		final KeyPair keyPair) {
+		return createRepository(id, keyPair, false);
+	}
+	
+	public Repository createRepository(final HavaloUUID id,
+		final KeyPair keyPair, final boolean compressed) {
 		// Get a proper pointer to this Repository.  Do not fail
 		// if the underlying File (directory) is not found yet -- it
 		// won't exist yet because it hasn't been created.
@@ -107,9 +382,20 @@ public final class RepositoryManager extends ObjectStore {
 					// Create the new directory (and any required parent
 					// directories).
 					forceMkdir(repo.getFile());
+					// A new repository starts out with the configured
+					// object layout, nothing to migrate.
+					markObjectLayout(repo);
 					// Set the access key pair on this repository to the one
 					// provided by the caller.
 					repo.setKeyPair(keyPair);
+					if(keyPair != null) {
+						credentials_.put(keyPair);
+					}
+					// The repository may have been looked for, and not
+					// found, moments ago.
+					unknownRepositories_.invalidate(id);
+					// Gzip new object bodies on disk, if asked to.
+					repo.setCompressed(compressed);
 					return repo;
 				}
 				@Override
@@ -129,6 +415,12 @@ public final class RepositoryManager extends ObjectStore {
 	public Repository getRepository(final HavaloUUID id,
 		final boolean failIfNotFound) {
 		checkNotNull(id, "ID of the repository (owner) cannot be null.");
+		// Don't bother the disk again for a repository that wasn't
+		// there a moment ago.
+		if(failIfNotFound && unknownRepositories_.getIfPresent(id) != null) {
+			throw new RepositoryNotFoundException("Could not " +
+				"find repository: " + id);
+		}
 		try {
 			// Google Guava documentation claims that implementations of
 			// "Cache" should be thread safe, and therefore, wrapping accesses
@@ -136,12 +428,36 @@ public final class RepositoryManager extends ObjectStore {
 			return repositories_.get(id, new Callable<Repository>() {
 				@Override
 				public Repository call() throws Exception {
-					Repository repo = null;
+					// Pick a repository evicted from the cache back up, if
+					// it's still around.
+					Repository repo = instances_.getIfPresent(id);
+					if(repo != null) {
+						return repo;
+					}
 					final File repoFile = getCanonicalObject(storeDir_,
 						id.toString(), false).getFile();
 					if(repoFile.exists()) {
-						// Repository already exists. Load from disk.
-						repo = metaStore_.loadById(id);
+						// Repository already exists. Load from disk, once
+						// there's room to.
+						loadPermits_.acquire();
+						try {
+							repo = metaStore_.loadById(id, repoFile);
+						} finally {
+							loadPermits_.release();
+						}
+						// Move its objects to the configured layout in
+						// the background, if they're not there yet.
+						if(getObjectLayout(repoFile) != objectLayout_) {
+							layoutMigrator_.queue(repo);
+						}
+						// Garbage left in its segments before it was last
+						// unloaded is only found by looking.
+						if(new File(repoFile, SEGMENTS_DIRNAME).exists()) {
+							segmentCollector_.queue(repo);
+						}
+						// Count the references to its blobs before anyone
+						// else gets to see the repository.
+						getBlobStore(repo);
 					} else if(!repoFile.exists() && !failIfNotFound) {
 						// The repository does not exist, and we are not
 						// supposed to fail.  Create a new one!
@@ -153,9 +469,11 @@ public final class RepositoryManager extends ObjectStore {
 					} else {
 						// The repository does not exist, and we are
 						// supposed to fail if it wasn't found.
+						unknownRepositories_.put(id, Boolean.TRUE);
 						throw new RepositoryNotFoundException("Could not " +
 							"find repository: " + id);
 					}
+					instances_.put(id, repo);
 					return repo;
 				}
 			});
@@ -178,6 +496,57 @@ public final class RepositoryManager extends ObjectStore {
 		return getRepository(id, true);
 	}
 	
+	/**
+	 * Returns the repository with the given ID, without blocking the
+	 * calling thread if the repository isn't loaded yet: it's loaded in
+	 * the background instead, and the returned future is completed once
+	 * it's loaded.  Concurrent calls for the same repository share a
+	 * single load.  Fails with a {@link RepositoryNotFoundException} if
+	 * there's no such repository.
+	 */
+	public CompletableFuture<Repository> getRepositoryAsync(final HavaloUUID id) {
+		checkNotNull(id, "ID of the repository (owner) cannot be null.");
+		// Already loaded, by far the common case.
+		final Repository cached = repositories_.getIfPresent(id);
+		if(cached != null) {
+			return completedFuture(cached);
+		}
+		final CompletableFuture<Repository> created =
+			new CompletableFuture<Repository>();
+		// Nothing to load for a repository that wasn't there a moment ago.
+		if(unknownRepositories_.getIfPresent(id) != null) {
+			created.completeExceptionally(new RepositoryNotFoundException(
+				"Could not find repository: " + id));
+			return created;
+		}
+		CompletableFuture<Repository> future = loading_.get(id);
+		if(future != null) {
+			return future;
+		}
+		if((future = loading_.putIfAbsent(id, created)) != null) {
+			return future;
+		}
+		try {
+			loaderPool_.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						created.complete(getRepository(id));
+					} catch (Throwable t) {
+						created.completeExceptionally(t);
+					} finally {
+						loading_.remove(id, created);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			loading_.remove(id, created);
+			created.completeExceptionally(new RepositoryLoadException(
+				"Failed to queue load of repository: " + id, e));
+		}
+		return created;
+	}
+	
 	public void deleteRepository(final Repository repo) {
 		try {
 			new ReentrantReadWriteEntityLock<Void>(repo) {
@@ -185,6 +554,13 @@ public final class RepositoryManager extends ObjectStore {
 				public Void transaction() throws Exception {
 					// Delete all in-memory mappings to all objects in the repo.
 					repo.deleteAllObjects();
+					// Close the active segment, if any, before its file
+					// is deleted along with the rest of the repository.
+					final SegmentStore store = segments_.remove(repo);
+					if(store != null) {
+						store.close();
+					}
+					blobs_.remove(repo);
 					// Get a handle to the repository directory and recursively
 					// delete it and everything inside of it.
 					final File repoFile = repo.getFile();
@@ -196,6 +572,9 @@ public final class RepositoryManager extends ObjectStore {
 					}
 					// Delete the meta data associated with the repository too.
 					metaStore_.delete(repo.getKey());
+					// And its key pair, requests signed with it are no
+					// longer accepted.
+					credentials_.remove(repo.getRepoId());
 					return null;
 				}
 				@Override
@@ -204,6 +583,7 @@ public final class RepositoryManager extends ObjectStore {
 					// local in-memory "cache".  If the repository was not
 					// deleted successfully, then fail.
 					repositories_.invalidate(repo.getRepoId());
+					instances_.invalidate(repo.getRepoId());
 				}
 			}.write(); // Exclusive lock on repo, no wait
 		} catch (LockConflictException e) {
@@ -220,6 +600,71 @@ public final class RepositoryManager extends ObjectStore {
 		deleteRepository(getRepository(id));		
 	}
 	
+	/**
+	 * Returns the key pair with the given access key, or null if there's
+	 * no repository with such a key pair.  Never loads the repository,
+	 * nor touches the disk.
+	 */
+	public KeyPair getKeyPair(final HavaloUUID id) {
+		checkNotNull(id, "ID of the key pair cannot be null.");
+		return credentials_.get(id);
+	}
+	
+	/**
+	 * Adds the given key pair to the credential index, replacing the key
+	 * pair with the same access key if any, e.g., for the bootstrap admin
+	 * key pair, which comes from configuration.
+	 */
+	public void putKeyPair(final KeyPair keyPair) {
+		checkNotNull(keyPair, "Key pair cannot be null.");
+		try {
+			credentials_.put(keyPair);
+		} catch (IOException e) {
+			throw new RepositoryFlushException("Failed to save key pair " +
+				"to credential index (id=" + keyPair.getKey() + ")", e);
+		}
+	}
+	
+	/**
+	 * Loads the credential index from disk.  Repositories that predate it
+	 * have their key pairs collected from their meta data, once.
+	 */
+	private void loadCredentials() {
+		try {
+			if(credentials_.exists()) {
+				credentials_.load();
+				logger__.info("Loaded credential index (keyPairs=" +
+					credentials_.size() + ")");
+				return;
+			}
+			forceMkdir(storeDir_);
+			final List<KeyPair> keyPairs = new ArrayList<KeyPair>();
+			for(final HavaloUUID id : metaStore_.listRepositoryIds()) {
+				final File repoDir = getCanonicalObject(storeDir_,
+					id.toString(), false).getFile();
+				if(!repoDir.exists()) {
+					// Meta data left behind by a deleted repository.
+					logger__.warn("Skipping repository meta data without " +
+						"a repository directory (id=" + id + ")");
+					continue;
+				}
+				// A repository that can't be loaded fails the boot, rather
+				// than saving an index that locks its owner out for good.
+				final KeyPair keyPair = metaStore_.loadById(id, repoDir)
+					.getKeyPair();
+				if(keyPair != null) {
+					keyPairs.add(keyPair);
+				}
+			}
+			credentials_.reset(keyPairs);
+			logger__.info("Rebuilt credential index from repository meta " +
+				"data (keyPairs=" + keyPairs.size() + ")");
+		} catch (Exception e) {
+			throw new BootstrapException("Failed to load credential " +
+				"index (dir=" + storeDir_.getAbsolutePath() + ")", e);
+		}
+	}
+	
 	public HashedFileObject getHashedFileObject(final HavaloUUID id,
 		final String key, final boolean failIfNotFound) {
 		return getHashedFileObject(getRepository(id), key, failIfNotFound);
@@ -296,16 +741,39 @@ public final class RepositoryManager extends ObjectStore {
 										eTag + ", if-match=" + ifMatch + ")");
 								}
 							}
+							// Objects stored inline, in a packed segment or in
+							// a blob have no file of their own.  Dropping the
+							// object from the index frees its inline value; a
+							// value in a segment becomes garbage, to be
+							// reclaimed by the segment collector; a blob is
+							// deleted once nothing references it anymore.
+							if(hfo.getValue() != null ||
+								hfo.getSegment() != null ||
+								hfo.getBlob() != null) {
+								metaStore_.logDelete(repo, key);
+								releaseSegment(repo, hfo);
+								releaseBlob(repo, hfo);
+								compactIfNecessary(repo);
+								return hfo;
+							}
 							// OK, we either didn't have an incoming If-Match
 							// to check, or we did and it passed -- grab a
 							// pointer to the actual File on disk.
-							final File hfoFile = getCanonicalObject(repo.getFile(),
-								getSHA256Hash(key), false).getFile();
+							final File hfoFile = getCanonicalObject(repo,
+								hfo, false).getFile();
+							// The object may not have been moved to the
+							// configured layout yet.
+							if(!hfoFile.exists()) {
+								migrateObject(repo, hfo);
+							}
 							// Validate that the file exists before we attempt
 							// to physically remove it from disk.
 							if(hfoFile.exists()) {
 								if(deleteQuietly(hfoFile)) {
-									repo.deleteObject(key);
+									// Drop the object from the index and
+									// record the deletion in the log.
+									metaStore_.logDelete(repo, key);
+									compactIfNecessary(repo);
 								} else {
 									throw new ObjectDeletionException("Failed " +
 										"to delete object from disk (file=" +
@@ -326,12 +794,6 @@ public final class RepositoryManager extends ObjectStore {
 						}
 					}.write(); // Exclusive lock, fail immediately if HFO busy
 				}
-				@Override
-				public void success(final HashedFileObject hfo) throws Exception {					
-					// If we get here, then the deletion must have succeeded.
-					// Queue the repository to be flushed to disk.
-					metaWriter_.queue(repo);
-				}
 			}.read(false); // Shared reader lock on repo, no wait
 		} catch (LockConflictException e) {
 			throw e;
@@ -349,11 +811,400 @@ public final class RepositoryManager extends ObjectStore {
 		final HashedFileObject hfo, final boolean makeParentDirs) {
 		return getCanonicalObject(repo.getFile(),
 			getSHA256Hash(hfo.getName()),
+			objectLayout_,
 			makeParentDirs);
 	}
 	
+	public ObjectLayout getObjectLayout() {
+		return objectLayout_;
+	}
+	
+	/**
+	 * Moves the file of the given object to where the configured layout
+	 * expects it, if it's still found where another layout put it (the
+	 * repository hasn't been fully migrated yet).  Returns true if the
+	 * object file was moved.  A file found under another layout when one
+	 * already exists under the configured layout is a stale copy from
+	 * before the object was replaced, and is deleted.  The caller should
+	 * hold a lock on the object.
+	 */
+	public boolean migrateObject(final Repository repo,
+		final HashedFileObject hfo) throws IOException {
+		final String hash = getSHA256Hash(hfo.getName());
+		final File target = getCanonicalObject(repo.getFile(), hash,
+			objectLayout_, false).getFile();
+		for(final ObjectLayout layout : ObjectLayout.values()) {
+			if(layout == objectLayout_) {
+				continue;
+			}
+			final File source = getCanonicalObject(repo.getFile(), hash,
+				layout, false).getFile();
+			if(!source.isFile()) {
+				continue;
+			}
+			boolean moved = false;
+			if(target.exists()) {
+				deleteQuietly(source);
+			} else {
+				moved = move(source, target);
+			}
+			deleteEmptyParents(source.getParentFile(), repo.getFile());
+			if(moved) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static final boolean move(final File source, final File target)
+		throws IOException {
+		for(int attempt = 1; ; attempt++) {
+			forceMkdir(target.getParentFile());
+			try {
+				Files.move(source.toPath(), target.toPath(), ATOMIC_MOVE);
+				return true;
+			} catch (NoSuchFileException e) {
+				if(!source.exists()) {
+					// Lost a race with a concurrent reader that moved the
+					// same object.
+					return false;
+				} else if(attempt == MAX_MOVE_ATTEMPTS) {
+					throw e;
+				}
+				// The target directory was removed, as it was empty, by
+				// another move just after it was created; try again.
+			}
+		}
+	}
+	
+	/**
+	 * Deletes the given directory, and its parents up to (but excluding)
+	 * the given root, for as long as they're empty.
+	 */
+	private static final void deleteEmptyParents(File dir, final File root) {
+		while(dir != null && !dir.equals(root) && dir.delete()) {
+			dir = dir.getParentFile();
+		}
+	}
+	
+	/**
+	 * Returns the object layout recorded for the given repository
+	 * directory, or null if the recorded layout is not recognized.
+	 */
+	private static final ObjectLayout getObjectLayout(final File repoDir) {
+		final File marker = new File(repoDir, LAYOUT_MARKER_FILENAME);
+		if(!marker.exists()) {
+			return ObjectLayout.SPLIT;
+		}
+		try {
+			return ObjectLayout.getByName(readFileToString(marker,
+				UTF_8).trim());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Records that the objects of the given repository are laid out with
+	 * the configured layout.
+	 */
+	void markObjectLayout(final Repository repo) throws IOException {
+		final File temp = new File(repo.getFile(), LAYOUT_MARKER_TEMP_FILENAME);
+		writeStringToFile(temp, objectLayout_.getName(), UTF_8);
+		Files.move(temp.toPath(), new File(repo.getFile(),
+			LAYOUT_MARKER_FILENAME).toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Returns true if an object of the given length is stored in a packed
+	 * segment, instead of a file of its own.  A max segmented object size
+	 * of zero turns packed segments off.
+	 */
+	public boolean isSegmented(final long length) {
+		return maxSegmentedObjectSize_ > 0L &&
+			length <= maxSegmentedObjectSize_;
+	}
+	
+	public SegmentStore getSegmentStore(final Repository repo) {
+		SegmentStore store = segments_.get(repo);
+		if(store == null) {
+			final SegmentStore created = new SegmentStore(
+				new File(repo.getFile(), SEGMENTS_DIRNAME), maxSegmentSize_);
+			store = segments_.putIfAbsent(repo, created);
+			if(store == null) {
+				store = created;
+			}
+		}
+		return store;
+	}
+	
+	/**
+	 * Stores the given value of the given object in the active packed
+	 * segment of its repository.  Whatever the object held before, either
+	 * a file of its own or a value in a segment, is dropped.  The caller
+	 * should hold an exclusive lock on the object, and commit it afterwards.
+	 */
+	public SegmentPointer writeSegment(final Repository repo,
+		final HashedFileObject hfo, final byte[] value) throws IOException {
+		final SegmentPointer pointer = getSegmentStore(repo).append(value);
+		releaseValue(repo, hfo);
+		hfo.setSegment(pointer);
+		deleteObjectFiles(repo, hfo);
+		return pointer;
+	}
+	
+	/**
+	 * Returns true if an object of the given length may be stored inline,
+	 * in the in-memory index of its repository, budget permitting.  A max
+	 * inline object size of zero turns inlining off.
+	 */
+	public boolean isInlined(final long length) {
+		return maxInlineObjectSize_ > 0L && length <= maxInlineObjectSize_;
+	}
+	
+	/**
+	 * Stores the given value of the given object inline, in the in-memory
+	 * index of its repository, if it's small enough and fits within the
+	 * inline budget of the repository.  Whatever the object held before is
+	 * dropped.  Returns false, leaving the object untouched, otherwise.
+	 * The caller should hold an exclusive lock on the object, and commit it
+	 * afterwards.
+	 */
+	public boolean writeInline(final Repository repo,
+		final HashedFileObject hfo, final byte[] value) {
+		if(!isInlined(value.length) ||
+			!repo.reserveInline(value.length, maxInlineRepositorySize_)) {
+			return false;
+		}
+		releaseValue(repo, hfo);
+		hfo.setValue(value);
+		deleteObjectFiles(repo, hfo);
+		return true;
+	}
+	
+	/**
+	 * Returns true if the bodies of new objects are deduplicated, stored
+	 * once per repository in content addressed blobs.
+	 */
+	public boolean isDeduplicated() {
+		return deduplication_;
+	}
+	
+	public BlobStore getBlobStore(final Repository repo) {
+		BlobStore store = blobs_.get(repo);
+		if(store == null) {
+			final BlobStore created = new BlobStore(
+				new File(repo.getFile(), BLOBS_DIRNAME), repo.getObjects());
+			store = blobs_.putIfAbsent(repo, created);
+			if(store == null) {
+				store = created;
+			}
+		}
+		return store;
+	}
+	
+	/**
+	 * Points the given object at the blob with the given hash, whose
+	 * content was received into the given file.  If an identical blob is
+	 * already stored, the file is deleted, and nothing but meta data
+	 * changes.  Whatever the object held before is dropped.  Returns the
+	 * blob file.  The caller should hold an exclusive lock on the object,
+	 * and commit it afterwards.
+	 */
+	public File writeBlob(final Repository repo, final HashedFileObject hfo,
+		final File file, final String hash) throws IOException {
+		final BlobStore store = getBlobStore(repo);
+		// Reference the new blob before the old one is released, they
+		// may well be the same.
+		store.acquire(hash, file);
+		releaseValue(repo, hfo);
+		hfo.setBlob(hash);
+		deleteObjectFiles(repo, hfo);
+		return store.getFile(hash);
+	}
+	
+	/**
+	 * Returns the file of the blob the given object points at.
+	 */
+	public File getBlobFile(final Repository repo, final String hash) {
+		return getBlobStore(repo).getFile(hash);
+	}
+	
+	/**
+	 * Drops the value of the given object, if it was stored inline, in a
+	 * packed segment or in a blob.  The caller should hold an exclusive
+	 * lock on the object.
+	 */
+	public void releaseValue(final Repository repo,
+		final HashedFileObject hfo) {
+		final byte[] value = hfo.getValue();
+		if(value != null) {
+			hfo.setValue(null);
+			repo.releaseInline(value.length);
+		}
+		releaseSegment(repo, hfo);
+		releaseBlob(repo, hfo);
+	}
+	
+	private void releaseBlob(final Repository repo,
+		final HashedFileObject hfo) {
+		final String blob = hfo.getBlob();
+		if(blob != null) {
+			hfo.setBlob(null);
+			getBlobStore(repo).release(blob);
+		}
+	}
+	
+	/**
+	 * Deletes the file of the given object, under any layout, if it had
+	 * one.
+	 */
+	private void deleteObjectFiles(final Repository repo,
+		final HashedFileObject hfo) {
+		final String hash = getSHA256Hash(hfo.getName());
+		for(final ObjectLayout layout : ObjectLayout.values()) {
+			final File file = getCanonicalObject(repo.getFile(), hash,
+				layout, false).getFile();
+			if(file.isFile() && deleteQuietly(file)) {
+				deleteEmptyParents(file.getParentFile(), repo.getFile());
+			}
+		}
+	}
+	
+	/**
+	 * Drops the value of the given object from its packed segment, if it
+	 * was stored in one, and queues the segments of the repository to be
+	 * collected once enough of them is garbage.  The caller should hold an
+	 * exclusive lock on the object.
+	 */
+	private void releaseSegment(final Repository repo,
+		final HashedFileObject hfo) {
+		final SegmentPointer pointer = hfo.getSegment();
+		if(pointer == null) {
+			return;
+		}
+		hfo.setSegment(null);
+		final long garbage = getSegmentStore(repo).release(pointer);
+		if(garbage >= maxSegmentSize_ * segmentGarbageRatio_) {
+			segmentCollector_.queue(repo);
+		}
+	}
+	
+	/**
+	 * Opens the packed segment the given pointer points into for reading.
+	 * The caller owns, and should close, the returned channel.
+	 */
+	public FileChannel openSegment(final Repository repo,
+		final SegmentPointer pointer) throws IOException {
+		return getSegmentStore(repo).open(pointer);
+	}
+	
+	/**
+	 * Copies the value of the given object from its packed segment into
+	 * the active one, and records its new location.  The caller should
+	 * hold an exclusive lock on the object.
+	 */
+	void moveSegment(final Repository repo, final HashedFileObject hfo)
+		throws IOException {
+		final SegmentStore store = getSegmentStore(repo);
+		hfo.setSegment(store.append(store.read(hfo.getSegment())));
+		metaStore_.logPut(repo, hfo);
+	}
+	
+	/**
+	 * Saves the meta data of the given repository right away, on the
+	 * calling thread.
+	 */
+	void saveRepository(final Repository repo) throws IOException {
+		forceSegments(repo);
+		metaStore_.save(repo);
+	}
+	
+	/**
+	 * Forces the values appended to the packed segments of the given
+	 * repository to disk.  The snapshot of a repository is synced, and
+	 * must never point at segment bytes that may not have made it to disk
+	 * themselves.
+	 */
+	private void forceSegments(final Repository repo) throws IOException {
+		final SegmentStore store = segments_.get(repo);
+		if(store != null) {
+			store.force();
+		}
+	}
+	
+	/**
+	 * Records the current state of the given object in the mutation log
+	 * of its repository.  The caller should hold an exclusive lock on the
+	 * object such that the record reflects a consistent state.
+	 */
+	public void commitHashedFileObject(final Repository repo,
+		final HashedFileObject hfo) {
+		metaStore_.logPut(repo, hfo);
+		compactIfNecessary(repo);
+		weighIfNecessary(repo);
+	}
+	
+	/**
+	 * Weighs the repository again once it has doubled in size since it was
+	 * last weighed, such that the cache bound on the number of indexed
+	 * objects holds as repositories grow, not only once their log is
+	 * compacted.
+	 */
+	private void weighIfNecessary(final Repository repo) {
+		if(maxCachedObjects_ > 0L && repo.isOverweight()) {
+			// Putting the repository back in the cache weighs it again.
+			repositories_.asMap().replace(repo.getRepoId(), repo, repo);
+		}
+	}
+	
+	/**
+	 * Queues the repository to be saved, which folds its mutation log
+	 * into a fresh snapshot, once the log has grown beyond the configured
+	 * max number of records or max size.  This keeps the time it takes to
+	 * load a repository bounded.
+	 */
+	private void compactIfNecessary(final Repository repo) {
+		if(metaStore_.shouldCompact(repo.getKey(), maxLogRecords_,
+			maxLogSize_)) {
+			metaWriter_.queue(repo);
+			// The repository has likely grown since it was last weighed;
+			// putting it back in the cache weighs it again.
+			repositories_.asMap().replace(repo.getRepoId(), repo, repo);
+		}
+	}
+	
 	public void flushRepository(final Repository repo) {
 		metaWriter_.queue(repo);
 	}
+	
+	/**
+	 * Turns write time compression of new objects on or off for the given
+	 * repository.  Objects already on disk are left in whatever encoding
+	 * they were stored with; both are served transparently.
+	 */
+	public Repository setRepositoryCompressed(final Repository repo,
+		final boolean compressed) {
+		try {
+			return new ReentrantReadWriteEntityLock<Repository>(repo) {
+				@Override
+				public Repository transaction() throws Exception {
+					return repo.setCompressed(compressed);
+				}
+				@Override
+				public void success(final Repository repo) throws Exception {
+					// The flag only lives in the snapshot, which is saved
+					// right away such that the change survives a crash
+					// once it's acknowledged.
+					saveRepository(repo);
+				}
+			}.write(true); // Exclusive lock, wait
+		} catch (LockConflictException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RepositoryFlushException("Failed to update " +
+				"repository: " + repo.getRepoId(), e);
+		}
+	}
 		
 }
@@ -0,0 +1,477 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.managers;
+
+import static com.google.common.net.HttpHeaders.CONTENT_LENGTH;
+import static com.google.common.net.HttpHeaders.ETAG;
+import static com.google.common.net.HttpHeaders.LAST_MODIFIED;
+import static com.kolich.common.date.RFC822DateFormat.getNewInstance;
+import static org.apache.commons.codec.binary.StringUtils.getBytesUtf8;
+import static org.apache.commons.codec.binary.StringUtils.newStringUtf8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import com.kolich.havalo.entities.types.HashedFileObject;
+import com.kolich.havalo.entities.types.HavaloUUID;
+import com.kolich.havalo.entities.types.KeyPair;
+import com.kolich.havalo.entities.types.Repository;
+import com.kolich.havalo.entities.types.RepositoryLogRecord;
+import com.kolich.havalo.entities.types.RepositoryLogRecord.Operation;
+import com.kolich.havalo.entities.types.SegmentPointer;
+import com.kolich.havalo.entities.types.UserRole;
+
+/**
+ * The versioned binary encoding of {@link Repository} meta data, and of
+ * the records in its mutation log.
+ * 
+ * A snapshot holds the repository ID, its {@link KeyPair} and every
+ * {@link HashedFileObject} in the repository, in key order.  Framing,
+ * versioning and compression of the snapshot on disk are left to the
+ * {@link com.kolich.havalo.io.stores.MetaObjectStore}.
+ * Strings are written as a varint length followed by their UTF-8 bytes.
+ * The ETag, Content-Length and Last-Modified of an object, and where its
+ * value lives if it's stored in a packed segment, are written as
+ * fixed-width fields, whereas all other headers are written by name,
+ * where each distinct header name is written once and referred to by
+ * its index in a dictionary thereafter.  Values stored inline are
+ * written as a varint length followed by the value itself, the hash of
+ * the content addressed blob an object points at, if any, as its raw
+ * SHA-1 bytes, and the length of an object stored encoded on disk as
+ * another fixed-width field.
+ */
+public final class RepositoryMetaCodec {
+	
+	private static final int HAS_ETAG = 0x01;
+	private static final int HAS_CONTENT_LENGTH = 0x02;
+	private static final int HAS_LAST_MODIFIED = 0x04;
+	private static final int HAS_SEGMENT = 0x08;
+	private static final int HAS_VALUE = 0x10;
+	private static final int HAS_BLOB = 0x20;
+	private static final int HAS_STORED_LENGTH = 0x40;
+	
+	/**
+	 * Repository flags.  Older snapshots wrote a single boolean in their
+	 * place, whether the repository has a key pair, which reads the same.
+	 */
+	private static final int REPO_HAS_KEY_PAIR = 0x01;
+	private static final int REPO_COMPRESSED = 0x02;
+	
+	private static final int OP_PUT = 0;
+	private static final int OP_DELETE = 1;
+	
+	private static final int SHA1_LENGTH = 20;
+	
+	/**
+	 * Sanity limits, such that a corrupt length prefix never results
+	 * in an absurd allocation.
+	 */
+	private static final int MAX_STRING_LENGTH = 1024 * 1024;
+	private static final int MAX_VALUE_LENGTH = 1024 * 1024;
+	private static final int MAX_COUNT = Integer.MAX_VALUE - 8;
+	
+	// Cannot instantiate
+	private RepositoryMetaCodec() {}
+	
+	public static final void writeRepository(final Repository repo,
+		final OutputStream os) throws IOException {
+		final DataOutputStream out = new DataOutputStream(os);
+		writeUUID(out, repo.getRepoId());
+		final KeyPair keyPair = repo.getKeyPair();
+		int flags = 0;
+		if(keyPair != null) {
+			flags |= REPO_HAS_KEY_PAIR;
+		}
+		if(repo.isCompressed()) {
+			flags |= REPO_COMPRESSED;
+		}
+		out.writeByte(flags);
+		if(keyPair != null) {
+			writeUUID(out, keyPair.getKey());
+			writeString(out, keyPair.getSecret());
+			final List<UserRole> roles = keyPair.getRoles();
+			writeVarInt(out, roles.size());
+			for(final UserRole role : roles) {
+				writeString(out, role.name());
+			}
+		}
+		final List<HashedFileObject> objects = repo.getObjects();
+		writeVarInt(out, objects.size());
+		final Map<String,Integer> names = new HashMap<String,Integer>();
+		for(final HashedFileObject hfo : objects) {
+			writeObject(out, hfo, names);
+		}
+		out.flush();
+	}
+	
+	public static final Repository readRepository(final File repoDir,
+		final InputStream is) throws IOException {
+		final DataInputStream in = new DataInputStream(is);
+		final Repository repo = new Repository(repoDir, readUUID(in));
+		final int flags = in.readUnsignedByte();
+		repo.setCompressed((flags & REPO_COMPRESSED) != 0);
+		if((flags & REPO_HAS_KEY_PAIR) != 0) {
+			final HavaloUUID key = readUUID(in);
+			final String secret = readString(in);
+			final int roleCount = readCount(in);
+			final List<UserRole> roles = new ArrayList<UserRole>(roleCount);
+			for(int i = 0; i < roleCount; i++) {
+				roles.add(UserRole.valueOf(readString(in)));
+			}
+			repo.setKeyPair(new KeyPair(key, secret, roles));
+		}
+		final int objectCount = readCount(in);
+		final List<String> names = new ArrayList<String>();
+		for(int i = 0; i < objectCount; i++) {
+			final HashedFileObject hfo = readObject(in, names);
+			repo.addObject(hfo.getName(), hfo);
+		}
+		return repo;
+	}
+	
+	public static final byte[] encodeRecord(final RepositoryLogRecord record)
+		throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bos);
+		switch(record.getOperation()) {
+		case PUT:
+			out.writeByte(OP_PUT);
+			// Each record carries its own header name dictionary, records
+			// in the log are independent of one another.
+			writeObject(out, record.getObject(),
+				new HashMap<String,Integer>());
+			break;
+		case DELETE:
+			out.writeByte(OP_DELETE);
+			writeString(out, record.getKey());
+			break;
+		}
+		out.flush();
+		return bos.toByteArray();
+	}
+	
+	public static final RepositoryLogRecord decodeRecord(final byte[] bytes)
+		throws IOException {
+		final DataInputStream in = new DataInputStream(
+			new ByteArrayInputStream(bytes));
+		final int op = in.readUnsignedByte();
+		switch(op) {
+		case OP_PUT:
+			final HashedFileObject hfo = readObject(in,
+				new ArrayList<String>());
+			return new RepositoryLogRecord(Operation.PUT, hfo.getName(), hfo);
+		case OP_DELETE:
+			return RepositoryLogRecord.delete(readString(in));
+		default:
+			throw new IOException("Unrecognized log record operation: " + op);
+		}
+	}
+	
+	private static final void writeObject(final DataOutput out,
+		final HashedFileObject hfo, final Map<String,Integer> names)
+		throws IOException {
+		final Map<String,List<String>> headers = hfo.getHeaders();
+		// Only pull out the well known headers that survive a round trip
+		// through their fixed-width form unchanged; anything else is kept
+		// verbatim along with all other headers.
+		final byte[] eTag = toSHA1(headers.get(ETAG));
+		final Long contentLength = toLong(headers.get(CONTENT_LENGTH));
+		final Long lastModified = toMillis(headers.get(LAST_MODIFIED));
+		int flags = 0;
+		if(eTag != null) {
+			flags |= HAS_ETAG;
+			headers.remove(ETAG);
+		}
+		if(contentLength != null) {
+			flags |= HAS_CONTENT_LENGTH;
+			headers.remove(CONTENT_LENGTH);
+		}
+		if(lastModified != null) {
+			flags |= HAS_LAST_MODIFIED;
+			headers.remove(LAST_MODIFIED);
+		}
+		final SegmentPointer segment = hfo.getSegment();
+		if(segment != null) {
+			flags |= HAS_SEGMENT;
+		}
+		final byte[] inline = hfo.getValue();
+		if(inline != null) {
+			flags |= HAS_VALUE;
+		}
+		final byte[] blob = toBlob(hfo.getBlob());
+		if(blob != null) {
+			flags |= HAS_BLOB;
+		}
+		final long storedLength = hfo.getStoredLength();
+		if(storedLength >= 0L) {
+			flags |= HAS_STORED_LENGTH;
+		}
+		writeString(out, hfo.getName());
+		out.writeByte(flags);
+		if(eTag != null) {
+			out.write(eTag);
+		}
+		if(contentLength != null) {
+			out.writeLong(contentLength);
+		}
+		if(lastModified != null) {
+			out.writeLong(lastModified);
+		}
+		if(segment != null) {
+			writeVarInt(out, segment.getSegment());
+			out.writeLong(segment.getOffset());
+			out.writeLong(segment.getLength());
+		}
+		if(inline != null) {
+			writeVarInt(out, inline.length);
+			out.write(inline);
+		}
+		if(blob != null) {
+			out.write(blob);
+		}
+		if(storedLength >= 0L) {
+			out.writeLong(storedLength);
+		}
+		writeVarInt(out, headers.size());
+		for(final Map.Entry<String,List<String>> entry : headers.entrySet()) {
+			final Integer index = names.get(entry.getKey());
+			if(index == null) {
+				// An index one past the end of the dictionary means the
+				// name itself follows, and is to be added to it.
+				writeVarInt(out, names.size());
+				writeString(out, entry.getKey());
+				names.put(entry.getKey(), names.size());
+			} else {
+				writeVarInt(out, index);
+			}
+			final List<String> values = entry.getValue();
+			writeVarInt(out, values.size());
+			for(final String value : values) {
+				writeString(out, value);
+			}
+		}
+	}
+	
+	private static final HashedFileObject readObject(final DataInput in,
+		final List<String> names) throws IOException {
+		final HashedFileObject hfo = new HashedFileObject(readString(in),
+			new ConcurrentHashMap<String,List<String>>());
+		final int flags = in.readUnsignedByte();
+		if((flags & HAS_ETAG) != 0) {
+			final byte[] eTag = new byte[SHA1_LENGTH];
+			in.readFully(eTag);
+			hfo.setETag(Hex.encodeHexString(eTag));
+		}
+		if((flags & HAS_CONTENT_LENGTH) != 0) {
+			hfo.setContentLength(in.readLong());
+		}
+		if((flags & HAS_LAST_MODIFIED) != 0) {
+			hfo.setLastModified(in.readLong());
+		}
+		if((flags & HAS_SEGMENT) != 0) {
+			hfo.setSegment(new SegmentPointer(readCount(in), in.readLong(),
+				in.readLong()));
+		}
+		if((flags & HAS_VALUE) != 0) {
+			final int length = readCount(in);
+			if(length > MAX_VALUE_LENGTH) {
+				throw new IOException("Value length " + length + " exceeds " +
+					"limit of " + MAX_VALUE_LENGTH);
+			}
+			final byte[] value = new byte[length];
+			in.readFully(value);
+			hfo.setValue(value);
+		}
+		if((flags & HAS_BLOB) != 0) {
+			final byte[] blob = new byte[SHA1_LENGTH];
+			in.readFully(blob);
+			hfo.setBlob(Hex.encodeHexString(blob));
+		}
+		if((flags & HAS_STORED_LENGTH) != 0) {
+			hfo.setStoredLength(in.readLong());
+		}
+		final int headerCount = readCount(in);
+		for(int i = 0; i < headerCount; i++) {
+			final int index = readCount(in);
+			final String name;
+			if(index == names.size()) {
+				names.add(name = readString(in));
+			} else if(index < names.size()) {
+				name = names.get(index);
+			} else {
+				throw new IOException("Invalid header name index: " + index);
+			}
+			final int valueCount = readCount(in);
+			for(int j = 0; j < valueCount; j++) {
+				hfo.addHeader(name, readString(in));
+			}
+		}
+		return hfo;
+	}
+	
+	private static final byte[] toBlob(final String hash)
+		throws IOException {
+		if(hash == null) {
+			return null;
+		}
+		try {
+			final byte[] blob = Hex.decodeHex(hash.toCharArray());
+			if(blob.length != SHA1_LENGTH) {
+				throw new IOException("Invalid blob hash: " + hash);
+			}
+			return blob;
+		} catch (DecoderException e) {
+			throw new IOException("Invalid blob hash: " + hash, e);
+		}
+	}
+	
+	private static final byte[] toSHA1(final List<String> values) {
+		final String value = getSingleValue(values);
+		// Quoted, lower case, hex encoded SHA-1 hashes only.
+		if(value == null || value.length() != (SHA1_LENGTH * 2) + 2 ||
+			value.charAt(0) != '"' || value.charAt(value.length()-1) != '"') {
+			return null;
+		}
+		final String hex = value.substring(1, value.length()-1);
+		if(!hex.equals(hex.toLowerCase())) {
+			return null;
+		}
+		try {
+			return Hex.decodeHex(hex.toCharArray());
+		} catch (DecoderException e) {
+			return null;
+		}
+	}
+	
+	private static final Long toLong(final List<String> values) {
+		final String value = getSingleValue(values);
+		if(value == null) {
+			return null;
+		}
+		try {
+			final long l = Long.parseLong(value);
+			return (Long.toString(l).equals(value)) ? l : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	private static final Long toMillis(final List<String> values) {
+		final String value = getSingleValue(values);
+		if(value == null) {
+			return null;
+		}
+		try {
+			final DateFormat format = getNewInstance();
+			final long millis = format.parse(value).getTime();
+			return (format.format(new Date(millis)).equals(value)) ?
+				millis : null;
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+	
+	private static final String getSingleValue(final List<String> values) {
+		return (values != null && values.size() == 1) ? values.get(0) : null;
+	}
+	
+	private static final void writeUUID(final DataOutput out,
+		final HavaloUUID id) throws IOException {
+		out.writeLong(id.getId().getMostSignificantBits());
+		out.writeLong(id.getId().getLeastSignificantBits());
+	}
+	
+	private static final HavaloUUID readUUID(final DataInput in)
+		throws IOException {
+		return new HavaloUUID(new UUID(in.readLong(), in.readLong()));
+	}
+	
+	private static final void writeString(final DataOutput out,
+		final String s) throws IOException {
+		final byte[] bytes = getBytesUtf8(s);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+	
+	private static final String readString(final DataInput in)
+		throws IOException {
+		final int length = readCount(in);
+		if(length > MAX_STRING_LENGTH) {
+			throw new IOException("String length " + length + " exceeds " +
+				"limit of " + MAX_STRING_LENGTH);
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return newStringUtf8(bytes);
+	}
+	
+	private static final void writeVarInt(final DataOutput out, int value)
+		throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+	
+	private static final int readCount(final DataInput in)
+		throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 32; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				if(value < 0 || value > MAX_COUNT) {
+					throw new IOException("Invalid count: " + value);
+				}
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint.");
+	}
+	
+}
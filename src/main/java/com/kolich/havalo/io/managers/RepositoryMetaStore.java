@@ -27,18 +27,43 @@
 package com.kolich.havalo.io.managers;
 
 import static com.kolich.common.DefaultCharacterEncoding.UTF_8;
+import static com.kolich.common.util.crypt.Base32Utils.decodeBase32;
+import static com.kolich.common.util.crypt.Base32Utils.encodeBase32;
 import static com.kolich.havalo.entities.HavaloEntity.getHavaloGsonInstance;
+import static com.kolich.havalo.io.managers.RepositoryMetaCodec.decodeRecord;
+import static com.kolich.havalo.io.managers.RepositoryMetaCodec.encodeRecord;
+import static com.kolich.havalo.io.managers.RepositoryMetaCodec.readRepository;
+import static com.kolich.havalo.io.managers.RepositoryMetaCodec.writeRepository;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.GZIPInputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.kolich.havalo.entities.HavaloEntity;
+import com.kolich.havalo.entities.StoreableEntity;
+import com.kolich.havalo.entities.types.HashedFileObject;
 import com.kolich.havalo.entities.types.HavaloUUID;
 import com.kolich.havalo.entities.types.Repository;
+import com.kolich.havalo.entities.types.RepositoryLogRecord;
 import com.kolich.havalo.exceptions.repositories.RepositoryLoadException;
+import com.kolich.havalo.io.codecs.MetaCodec;
 import com.kolich.havalo.io.stores.MetaObjectStore;
 
 /**
@@ -47,24 +72,277 @@ import com.kolich.havalo.io.stores.MetaObjectStore;
  */
 public final class RepositoryMetaStore extends MetaObjectStore {
 	
+	private static final Logger logger__ =
+		LoggerFactory.getLogger(RepositoryMetaStore.class);
+	
+	/**
+	 * Legacy, GZIP'ed JSON, repository meta data and its JSON-lines
+	 * mutation logs.  Only ever read, to migrate a repository to the
+	 * binary format on load.
+	 */
+	private static final String LEGACY_JSON_EXTENSION = ".json";
+	private static final String LEGACY_LOG_EXTENSION = ".log";
+	private static final String LEGACY_ROTATED_LOG_EXTENSION =
+		".log.compacting";
+	
+	public RepositoryMetaStore(final File storeDir, final MetaCodec codec) {
+		super(storeDir, codec);
+	}
+	
 	public RepositoryMetaStore(final File storeDir) {
 		super(storeDir);
 	}
 	
-	public Repository loadById(final HavaloUUID ownerId) {
+	@Override
+	protected void write(final StoreableEntity entity,
+		final OutputStream os) throws Exception {
+		writeRepository((Repository)entity, os);
+	}
+	
+	/**
+	 * A repository whose directory is gone was deleted, and is never
+	 * saved again.
+	 */
+	@Override
+	protected boolean isSaveable(final StoreableEntity entity) {
+		final File repoDir = ((Repository)entity).getFile();
+		return repoDir == null || repoDir.exists();
+	}
+	
+	@Override
+	protected byte[] encode(final HavaloEntity record) throws Exception {
+		return encodeRecord((RepositoryLogRecord)record);
+	}
+	
+	public Repository loadById(final HavaloUUID ownerId,
+		final File repoDir) {
+		final String index = ownerId.toString();
+		if(!exists(index) && getCanonicalFile(index, LEGACY_JSON_EXTENSION,
+			false).exists()) {
+			return migrate(ownerId, repoDir);
+		}
+		try {
+			return load(ownerId, repoDir, false);
+		} catch (Exception e) {
+			if(!hasPrevious(index)) {
+				throw new RepositoryLoadException("Failed to load " +
+					"repository by ID: " + index, e);
+			}
+			logger__.warn("Failed to load repository meta data, falling " +
+				"back to previous generation (id=" + index + ")", e);
+		}
+		try {
+			final Repository repo = load(ownerId, repoDir, true);
+			// Set the unreadable snapshot aside and save a good one right
+			// away, such that the previous generation is never replaced
+			// by the unreadable snapshot.
+			setAside(index);
+			save(repo);
+			logger__.info("Recovered repository meta data from previous " +
+				"generation (id=" + index + ")");
+			return repo;
+		} catch (Exception e) {
+			throw new RepositoryLoadException("Failed to load repository " +
+				"by ID from previous generation: " + index, e);
+		}
+	}
+	
+	private Repository load(final HavaloUUID ownerId, final File repoDir,
+		final boolean previous) throws Exception {
+		final String index = ownerId.toString();
+		InputStream is = null;
+		try {
+			is = getInputStream(index, previous);
+			final Repository repo = readRepository(repoDir, is);
+			// Bring the snapshot up to date.
+			replayLogs(index, previous, new LogRecordHandler() {
+				@Override
+				public void handle(final byte[] record) throws Exception {
+					decodeRecord(record).apply(repo);
+				}
+			});
+			return repo;
+		} finally {
+			closeQuietly(is);
+		}
+	}
+	
+	/**
+	 * Records the current state of the given object in the mutation
+	 * log of its repository.
+	 */
+	public void logPut(final Repository repo, final HashedFileObject hfo) {
+		append(repo.getKey(), RepositoryLogRecord.put(hfo));
+	}
+	
+	/**
+	 * Removes the object with the given key from the repository index,
+	 * and records the deletion in the mutation log of the repository.
+	 * The two happen under the log lock of the repository such that a
+	 * concurrent re-creation of the same key can never be logged ahead
+	 * of its deletion.
+	 */
+	public HashedFileObject logDelete(final Repository repo,
+		final String key) {
+		final Lock logLock = getLogLock(repo.getKey());
+		logLock.lock();
+		try {
+			final HashedFileObject hfo = repo.deleteObject(key);
+			append(repo.getKey(), RepositoryLogRecord.delete(key));
+			return hfo;
+		} finally {
+			logLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the IDs of all repositories with meta data on disk, current
+	 * or legacy.  The meta data files are found by walking the store the
+	 * way they're laid out, their encoded names split into directories of
+	 * the max filename length, without descending into the repository
+	 * directories themselves.
+	 */
+	public Set<HavaloUUID> listRepositoryIds() {
+		final Set<HavaloUUID> ids = new HashSet<HavaloUUID>();
+		// No meta data file has a longer encoded name than this, there's
+		// nothing to find deeper down.
+		final int maxLength = encodeBase32(new UUID(0L, 0L).toString() +
+			PREVIOUS_META_EXTENSION).length();
+		listRepositoryIds(storeDir_, "", maxLength, ids);
+		return ids;
+	}
+	
+	private void listRepositoryIds(final File dir, final String prefix,
+		final int maxLength, final Set<HavaloUUID> ids) {
+		final File[] files = dir.listFiles();
+		if(files == null) {
+			return;
+		}
+		for(final File file : files) {
+			final String encoded = prefix + file.getName();
+			if(encoded.length() > maxLength) {
+				continue;
+			}
+			if(file.isDirectory()) {
+				// A repository directory holds objects, not meta data.
+				if(toRepositoryId(encoded, "") == null) {
+					listRepositoryIds(file, encoded, maxLength, ids);
+				}
+				continue;
+			}
+			for(final String extension : new String[]{META_EXTENSION,
+				PREVIOUS_META_EXTENSION, LEGACY_JSON_EXTENSION}) {
+				final HavaloUUID id = toRepositoryId(encoded, extension);
+				if(id != null) {
+					ids.add(id);
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the repository ID the given encoded name, with the given
+	 * extension, belongs to; or null if it's not such a name.
+	 */
+	private static final HavaloUUID toRepositoryId(final String encoded,
+		final String extension) {
+		try {
+			final String index = decodeBase32(encoded);
+			if(!index.endsWith(extension)) {
+				return null;
+			}
+			final String id = index.substring(0, index.length() -
+				extension.length());
+			// The canonical form only, e.g., "8-4-4-4-12" hex digits.
+			return (id.length() == 36) ? new HavaloUUID(id) : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Loads a repository from its legacy JSON meta data and logs, saves
+	 * it in the binary format, and only then deletes the legacy files.
+	 */
+	private Repository migrate(final HavaloUUID ownerId,
+		final File repoDir) {
+		final String index = ownerId.toString();
+		final File json = getCanonicalFile(index, LEGACY_JSON_EXTENSION,
+			false);
 		InputStream is = null;
 		Reader reader = null;
 		try {
-			is = getInputStream(ownerId.toString());
+			final Gson gson = getHavaloGsonInstance();
+			is = new GZIPInputStream(new BufferedInputStream(
+				new FileInputStream(json)));
 			reader = new InputStreamReader(is, UTF_8);
-			return getHavaloGsonInstance().fromJson(reader, Repository.class);
-		} catch (UnsupportedEncodingException e) {
-			throw new RepositoryLoadException("Failed to load repository " +
-				"by ID: " + ownerId.toString(), e);
+			final Repository legacy = gson.fromJson(reader, Repository.class);
+			// The absolute path of the repository directory is no longer
+			// persisted, the repository is rebuilt around the one given.
+			final Repository repo = new Repository(repoDir, ownerId)
+				.setKeyPair(legacy.getKeyPair());
+			for(final HashedFileObject hfo : legacy.getObjects()) {
+				repo.addObject(hfo.getName(), new HashedFileObject(
+					hfo.getName(), hfo.getHeaders()));
+			}
+			final long records = replayLegacyLogs(gson, repo);
+			save(repo);
+			deleteQuietly(getCanonicalFile(index,
+				LEGACY_ROTATED_LOG_EXTENSION, false));
+			deleteQuietly(getCanonicalFile(index, LEGACY_LOG_EXTENSION,
+				false));
+			deleteQuietly(json);
+			logger__.info("Migrated repository meta data to binary " +
+				"format (id=" + index + ", objects=" +
+					repo.getObjects().size() + ", records=" + records + ")");
+			return repo;
+		} catch (Exception e) {
+			throw new RepositoryLoadException("Failed to migrate " +
+				"repository by ID: " + index, e);
 		} finally {
 			closeQuietly(reader);
 			closeQuietly(is);
 		}
 	}
+	
+	private long replayLegacyLogs(final Gson gson, final Repository repo)
+		throws Exception {
+		long records = 0L;
+		// Oldest first: a rotated log only exists if a previous save
+		// did not complete.
+		for(final String extension : new String[]{
+			LEGACY_ROTATED_LOG_EXTENSION, LEGACY_LOG_EXTENSION}) {
+			final File log = getCanonicalFile(repo.getKey(), extension, false);
+			if(!log.exists()) {
+				continue;
+			}
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(log), UTF_8));
+				String line = null;
+				while((line = reader.readLine()) != null) {
+					if(line.isEmpty()) {
+						continue;
+					}
+					try {
+						gson.fromJson(line, RepositoryLogRecord.class)
+							.apply(repo);
+						++records;
+					} catch (JsonParseException e) {
+						// Usually a record torn by a crash in the middle
+						// of an append.  Nothing else can be done with it.
+						logger__.warn("Skipping unreadable log record " +
+							"(id=" + repo.getKey() + ", record=" + line +
+								")", e);
+					}
+				}
+			} finally {
+				closeQuietly(reader);
+			}
+		}
+		return records;
+	}
 
 }
@@ -26,32 +26,60 @@
 
 package com.kolich.havalo.io.managers;
 
-import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.Executors.newScheduledThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.kolich.bolt.ReentrantReadWriteEntityLock;
 import com.kolich.havalo.entities.types.Repository;
 import com.kolich.havalo.io.MetaStore;
 
-public final class RepositoryMetaWriter {
+/**
+ * Flushes repository meta data to disk in the background.  Flushes are
+ * coalesced per repository: no matter how many times a repository is
+ * queued, there is at most one flush of it in flight and at most one
+ * pending.  A pending flush is delayed until the repository has been
+ * quiet for the flush delay, but never for longer than the max dirty
+ * interval since it was first queued.
+ */
+public class RepositoryMetaWriter {
 	
 	private static final Logger logger__ =
 		LoggerFactory.getLogger(RepositoryMetaWriter.class);
 	
 	private static final int DEFAULT_WRITER_POOL_SIZE = 20;
+	
+	public static final long DEFAULT_FLUSH_DELAY_MS = 50L;
+	public static final long DEFAULT_MAX_DIRTY_MS = 1000L;
 			
 	private final MetaStore metaStore_;		
-	private final ExecutorService writerPool_;
+	private final ScheduledExecutorService writerPool_;
+	
+	private final long flushDelay_;
+	private final long maxDirty_;
+	
+	/**
+	 * The flush state of each repository that is either dirty or
+	 * being flushed right now, keyed by repository key.
+	 */
+	private final ConcurrentMap<String, PendingFlush> pending_;
 			
 	public RepositoryMetaWriter(final MetaStore metaStore,
-		final int poolSize) {
+		final int poolSize, final long flushDelay, final long maxDirty) {
 		metaStore_ = metaStore;
-		writerPool_ = newFixedThreadPool(poolSize,
+		flushDelay_ = flushDelay;
+		maxDirty_ = max(flushDelay, maxDirty);
+		pending_ = new ConcurrentHashMap<String, PendingFlush>();
+		writerPool_ = newScheduledThreadPool(poolSize,
 			new ThreadFactoryBuilder()
 				.setDaemon(true)
 				.setNameFormat("havalo-meta-writer-%s")
@@ -59,32 +87,152 @@ public final class RepositoryMetaWriter {
 				.build());
 	}
 	
+	public RepositoryMetaWriter(final MetaStore metaStore,
+		final long flushDelay, final long maxDirty) {
+		this(metaStore, DEFAULT_WRITER_POOL_SIZE, flushDelay, maxDirty);
+	}
+	
 	public RepositoryMetaWriter(final MetaStore metaStore) {
-		this(metaStore, DEFAULT_WRITER_POOL_SIZE);
+		this(metaStore, DEFAULT_FLUSH_DELAY_MS, DEFAULT_MAX_DIRTY_MS);
 	}
 	
+	/**
+	 * Marks the given repository as dirty, scheduling a flush of its
+	 * meta data if one is not already pending.
+	 */
 	public void queue(final Repository repo) {
-		writerPool_.execute(new Runnable() {
+		if(repo == null) {
+			return;
+		}
+		final String key = repo.getKey();
+		while(true) {
+			PendingFlush flush = pending_.get(key);
+			if(flush == null) {
+				final PendingFlush existing = pending_.putIfAbsent(key,
+					flush = new PendingFlush(key));
+				if(existing != null) {
+					flush = existing;
+				}
+			}
+			synchronized(flush) {
+				if(flush.retired_) {
+					// Lost a race with the end of a flush that just
+					// removed this state from the map; try again.
+					continue;
+				}
+				final long now = currentTimeMillis();
+				flush.repo_ = repo;
+				if(!flush.dirty_) {
+					flush.dirty_ = true;
+					flush.dirtySince_ = now;
+				}
+				// Push the flush out by the flush delay on every write,
+				// but never beyond the max dirty interval.
+				flush.deadline_ = min(now + flushDelay_,
+					flush.dirtySince_ + maxDirty_);
+				// If a flush is running right now, it will re-schedule
+				// itself when done.
+				if(!flush.scheduled_ && !flush.running_) {
+					flush.scheduled_ = true;
+					schedule(flush, flush.deadline_ - now);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Called on a writer thread right before the meta data of the given
+	 * repository is saved, e.g., to make whatever the snapshot points at
+	 * durable first.  A failure skips the save, the repository stays
+	 * covered by its mutation log.
+	 */
+	protected void beforeSave(final Repository repo) throws Exception {
+		// Nothing, by default.
+	}
+	
+	private void schedule(final PendingFlush flush, final long delay) {
+		writerPool_.schedule(new Runnable() {
 			@Override
 			public void run() {
-				// Grab a read lock; ensures no writes will be allowed
-				// during the flush-to-disk process.
-				try {
-					if(repo != null) {
-						new ReentrantReadWriteEntityLock<Repository>(repo) {
-							@Override
-							public Repository transaction() throws Exception {
-								// Flush the repository meta data to disk.
-								metaStore_.save(repo);
-								return repo;
-							}
-						}.read(); // Shared read, wait
-					}
-				} catch (Exception e) {
-					logger__.error("Failed to flush repository to disk.", e);
+				flush(flush);
+			}
+		}, max(0L, delay), MILLISECONDS);
+	}
+	
+	private void flush(final PendingFlush flush) {
+		final Repository repo;
+		synchronized(flush) {
+			final long now = currentTimeMillis();
+			if(now < flush.deadline_) {
+				// Written to since this flush was scheduled, wait
+				// a little longer.
+				schedule(flush, flush.deadline_ - now);
+				return;
+			}
+			flush.scheduled_ = false;
+			flush.dirty_ = false;
+			flush.running_ = true;
+			repo = flush.repo_;
+		}
+		try {
+			save(repo);
+		} finally {
+			synchronized(flush) {
+				flush.running_ = false;
+				if(flush.dirty_) {
+					// Dirtied again while the flush was running.
+					flush.scheduled_ = true;
+					schedule(flush, flush.deadline_ - currentTimeMillis());
+				} else {
+					flush.retired_ = true;
+					pending_.remove(flush.key_, flush);
 				}
 			}
-		});
+		}
+	}
+	
+	private void save(final Repository repo) {
+		// No lock on the repository is held while its meta data is
+		// flushed; reads and writes carry on as usual.  The store rotates
+		// the mutation log of the repository before it takes a weakly
+		// consistent snapshot of its index.  Any write the snapshot misses,
+		// or only partially sees, was appended to the new log after the
+		// rotation and is replayed on top of the snapshot on load.
+		try {
+			final String key = repo.getKey();
+			final long records = metaStore_.getLogRecordCount(key),
+				size = metaStore_.getLogSize(key);
+			final long start = currentTimeMillis();
+			beforeSave(repo);
+			// Flush the repository meta data to disk, compacting its
+			// log along the way.
+			metaStore_.save(repo);
+			logger__.info("Flushed repository meta data (id=" + key +
+				", compacted=" + records + "-records/" + size + "-bytes, " +
+				"took=" + (currentTimeMillis() - start) + "ms)");
+		} catch (Exception e) {
+			logger__.error("Failed to flush repository to disk.", e);
+		}
+	}
+	
+	private static final class PendingFlush {
+		
+		private final String key_;
+		
+		// All guarded by "this".
+		private Repository repo_;
+		private boolean dirty_;
+		private long dirtySince_;
+		private long deadline_;
+		private boolean scheduled_;
+		private boolean running_;
+		private boolean retired_;
+		
+		private PendingFlush(final String key) {
+			key_ = key;
+		}
+		
 	}
 
 }
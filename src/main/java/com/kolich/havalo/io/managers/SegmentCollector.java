@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.managers;
+
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.kolich.bolt.ReentrantReadWriteEntityLock;
+import com.kolich.havalo.entities.types.HashedFileObject;
+import com.kolich.havalo.entities.types.Repository;
+import com.kolich.havalo.entities.types.SegmentPointer;
+import com.kolich.havalo.io.stores.SegmentStore;
+
+/**
+ * Reclaims the space held by overwritten and deleted values in the
+ * packed segments of a repository, in the background, while the
+ * repository stays online.  Every sealed segment that is mostly garbage
+ * has its live values copied into the active segment, one object at a
+ * time.  Once the new locations of the moved values are safely in a
+ * fresh snapshot of the repository meta data, the old segments are
+ * deleted.
+ */
+public final class SegmentCollector {
+	
+	private static final Logger logger__ =
+		getLogger(SegmentCollector.class);
+	
+	private final RepositoryManager manager_;
+	private final ExecutorService collectorPool_;
+	
+	/**
+	 * The fraction of a sealed segment that must be garbage before its
+	 * live values are moved, and the segment is deleted.
+	 */
+	private final double garbageRatio_;
+	
+	/**
+	 * The keys of the repositories queued for, or being, collected.
+	 */
+	private final Set<String> queued_;
+	
+	public SegmentCollector(final RepositoryManager manager,
+		final double garbageRatio) {
+		manager_ = manager;
+		garbageRatio_ = garbageRatio;
+		queued_ = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+		collectorPool_ = newSingleThreadExecutor(
+			new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("havalo-segment-collector-%s")
+				.setPriority(Thread.MIN_PRIORITY)
+				.build());
+	}
+	
+	/**
+	 * Queues the segments of the given repository to be collected, unless
+	 * they're already queued.
+	 */
+	public void queue(final Repository repo) {
+		if(!queued_.add(repo.getKey())) {
+			return;
+		}
+		collectorPool_.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					collect(repo);
+				} catch (Exception e) {
+					logger__.error("Failed to collect repository " +
+						"segments (id=" + repo.getRepoId() + ")", e);
+				} finally {
+					queued_.remove(repo.getKey());
+				}
+			}
+		});
+	}
+	
+	private void collect(final Repository repo) throws Exception {
+		final SegmentStore store = manager_.getSegmentStore(repo);
+		// Anything released from here on out counts towards the next
+		// collection.
+		store.resetGarbage();
+		final int active = store.getActiveSegment();
+		// The live bytes of each segment, according to the index.
+		final Map<Integer, Long> live = new HashMap<Integer, Long>();
+		for(final HashedFileObject hfo : repo.getObjects()) {
+			final SegmentPointer pointer = hfo.getSegment();
+			if(pointer != null) {
+				final Long bytes = live.get(pointer.getSegment());
+				live.put(pointer.getSegment(), pointer.getLength() +
+					((bytes == null) ? 0L : bytes));
+			}
+		}
+		// The active segment is still being appended to, and is never
+		// collected.
+		final Set<Integer> candidates = new TreeSet<Integer>();
+		for(final Integer segment : store.getSegments()) {
+			if(segment >= active) {
+				continue;
+			}
+			final long size = store.getSize(segment);
+			final Long bytes = live.get(segment);
+			final long garbage = size - ((bytes == null) ? 0L : bytes);
+			if(garbage >= size * garbageRatio_) {
+				candidates.add(segment);
+			}
+		}
+		if(candidates.isEmpty()) {
+			return;
+		}
+		final List<HashedFileObject> moving = new ArrayList<HashedFileObject>();
+		for(final HashedFileObject hfo : repo.getObjects()) {
+			final SegmentPointer pointer = hfo.getSegment();
+			if(pointer != null && candidates.contains(pointer.getSegment())) {
+				moving.add(hfo);
+			}
+		}
+		long moved = 0L;
+		for(final HashedFileObject hfo : moving) {
+			if(move(repo, hfo, candidates)) {
+				moved++;
+			}
+		}
+		// The moved values must be on disk before the snapshot that points
+		// at them, and the new locations must be in a snapshot on disk
+		// before the only copy of the old ones is deleted; replaying the
+		// mutation log alone is not enough, it's not synced.
+		store.force();
+		manager_.saveRepository(repo);
+		long reclaimed = 0L;
+		for(final Integer segment : candidates) {
+			reclaimed += store.getSize(segment);
+			store.delete(segment);
+		}
+		logger__.info("Collected " + candidates.size() + "-segments, " +
+			"moved " + moved + "-objects, reclaimed " + reclaimed +
+			"-bytes (id=" + repo.getRepoId() + ")");
+	}
+	
+	private boolean move(final Repository repo, final HashedFileObject hfo,
+		final Set<Integer> candidates) throws Exception {
+		return new ReentrantReadWriteEntityLock<Boolean>(repo) {
+			@Override
+			public Boolean transaction() throws Exception {
+				// Skip objects that were deleted since the listing was
+				// taken.
+				if(repo.getObject(hfo.getName()) != hfo) {
+					return false;
+				}
+				return new ReentrantReadWriteEntityLock<Boolean>(hfo) {
+					@Override
+					public Boolean transaction() throws Exception {
+						// The object may have been overwritten since the
+						// listing was taken, and no longer live in one of
+						// the collected segments.
+						final SegmentPointer pointer = hfo.getSegment();
+						if(pointer == null ||
+							!candidates.contains(pointer.getSegment())) {
+							return false;
+						}
+						manager_.moveSegment(repo, hfo);
+						return true;
+					}
+				}.write(true); // Exclusive lock on object, wait
+			}
+		}.read(true); // Shared reader lock on repo, wait
+	}
+	
+}
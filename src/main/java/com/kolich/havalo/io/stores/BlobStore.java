@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.stores;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.kolich.havalo.entities.types.HashedFileObject;
+
+/**
+ * The content addressed blobs of a single repository: object bodies
+ * stored once, by the hex encoded SHA-1 hash of their content, no matter
+ * how many objects share them.  Each blob is reference counted by the
+ * objects that point at it, and deleted once the last of them is gone.
+ * Reference counts are never persisted; they're derived from the
+ * repository index when the store is created.
+ */
+public final class BlobStore extends ObjectStore {
+	
+	/**
+	 * Reference count of each blob, keyed by hash.  Guarded by "this".
+	 */
+	private final Map<String, Integer> refs_;
+	
+	/**
+	 * @param dir the directory the blobs are stored in
+	 * @param objects the objects in the repository, some of which may
+	 * point at blobs
+	 */
+	public BlobStore(final File dir, final Iterable<HashedFileObject> objects) {
+		super(dir);
+		refs_ = new HashMap<String, Integer>();
+		for(final HashedFileObject hfo : objects) {
+			final String blob = hfo.getBlob();
+			if(blob != null) {
+				final Integer refs = refs_.get(blob);
+				refs_.put(blob, (refs == null) ? 1 : refs + 1);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a reference to the blob with the given hash, whose content was
+	 * received into the given file.  If the blob is new, the file is moved
+	 * into place; otherwise the content is already stored, and the file is
+	 * deleted.  Returns true if the blob was new.
+	 */
+	public synchronized boolean acquire(final String hash, final File file)
+		throws IOException {
+		final Integer refs = refs_.get(hash);
+		final File blob = getFile(hash, true);
+		// A blob without references may still be on disk, if a previous
+		// delete failed; the content is the same either way.
+		final boolean created = !blob.exists();
+		if(created) {
+			Files.move(file.toPath(), blob.toPath(), ATOMIC_MOVE);
+		} else {
+			deleteQuietly(file);
+		}
+		refs_.put(hash, (refs == null) ? 1 : refs + 1);
+		return created;
+	}
+	
+	/**
+	 * Drops a reference to the blob with the given hash, and deletes the
+	 * blob once nothing references it anymore.
+	 */
+	public synchronized void release(final String hash) {
+		final Integer refs = refs_.get(hash);
+		if(refs == null || refs <= 1) {
+			refs_.remove(hash);
+			deleteQuietly(getFile(hash, false));
+		} else {
+			refs_.put(hash, refs - 1);
+		}
+	}
+	
+	public synchronized int getReferences(final String hash) {
+		final Integer refs = refs_.get(hash);
+		return (refs == null) ? 0 : refs;
+	}
+	
+	public File getFile(final String hash) {
+		return getFile(hash, false);
+	}
+	
+	private File getFile(final String hash, final boolean makeParentDirs) {
+		return getCanonicalObject(storeDir_, hash, ObjectLayout.FANOUT,
+			makeParentDirs).getFile();
+	}
+	
+}
@@ -26,96 +26,707 @@
 
 package com.kolich.havalo.io.stores;
 
+import com.google.common.util.concurrent.Striped;
+import com.kolich.havalo.entities.HavaloEntity;
 import com.kolich.havalo.entities.StoreableEntity;
 import com.kolich.havalo.exceptions.objects.ObjectFlushException;
 import com.kolich.havalo.exceptions.objects.ObjectLoadException;
 import com.kolich.havalo.io.MetaStore;
+import com.kolich.havalo.io.codecs.MetaCodec;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.Logger;
 
 import java.io.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
-import static com.kolich.common.DefaultCharacterEncoding.UTF_8;
-import static java.util.zip.Deflater.BEST_COMPRESSION;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.kolich.havalo.io.codecs.MetaCodec.DEFAULT_CODEC;
+import static com.kolich.havalo.io.codecs.MetaCodec.DEFLATE_ID;
+import static com.kolich.havalo.io.codecs.MetaCodec.getById;
+import static java.nio.channels.Channels.newInputStream;
+import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static org.apache.commons.io.FileUtils.deleteQuietly;
 import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.slf4j.LoggerFactory.getLogger;
 
 public abstract class MetaObjectStore extends ObjectStore implements MetaStore {
-		
-	protected static final String JSON_EXTENSION = ".json";
 	
-	public MetaObjectStore(final File storeDir) {
+	private static final Logger logger__ = getLogger(MetaObjectStore.class);
+	
+	/**
+	 * The last saved snapshot of an index.
+	 */
+	protected static final String META_EXTENSION = ".meta";
+	
+	/**
+	 * The snapshot of an index that was replaced by its last save.  It's
+	 * kept around, along with {@link #PREVIOUS_LOG_EXTENSION}, such that a
+	 * load can fall back to it if the last saved snapshot is unreadable.
+	 */
+	protected static final String PREVIOUS_META_EXTENSION = ".meta.prev";
+	
+	/**
+	 * The live, append-only, mutation log of an index.
+	 */
+	protected static final String LOG_EXTENSION = ".wal";
+	
+	/**
+	 * A mutation log that has been rotated out of the way while a new
+	 * snapshot of its index is being saved.  It becomes the log of the
+	 * previous generation once the snapshot is safely on disk.
+	 */
+	protected static final String ROTATED_LOG_EXTENSION = ".wal.compacting";
+	
+	/**
+	 * The log that was folded into the last saved snapshot.  Replayed on
+	 * top of the previous snapshot, followed by the rotated and live logs,
+	 * it rebuilds the index without the last saved snapshot.
+	 */
+	protected static final String PREVIOUS_LOG_EXTENSION = ".wal.prev";
+	
+	/**
+	 * A snapshot is written next to its final location under this suffix,
+	 * and only renamed into place once it's safely on disk.
+	 */
+	private static final String TEMP_SUFFIX = ".tmp";
+	
+	/**
+	 * An unreadable snapshot is set aside under this suffix, for
+	 * inspection, once its index was rebuilt from the previous generation.
+	 */
+	private static final String CORRUPT_SUFFIX = ".corrupt";
+	
+	/**
+	 * Every log starts with this magic, followed by a single byte
+	 * format version.  Each record in the log is then framed as a
+	 * 4-byte length, the record itself, and a 4-byte CRC32 of the record.
+	 */
+	private static final byte[] LOG_MAGIC = {'H', 'V', 'L', 'W'};
+	private static final int LOG_VERSION = 1;
+	private static final int LOG_HEADER_LENGTH = LOG_MAGIC.length + 1;
+	private static final int LOG_FRAME_OVERHEAD = 8;
+	
+	/**
+	 * Every snapshot starts with this magic, followed by a single byte
+	 * format version and the ID of the {@link MetaCodec} the rest of the
+	 * snapshot was compressed with, and ends with a 4-byte CRC32 of
+	 * everything before it.  Version 2 snapshots carry no checksum, and
+	 * version 1 snapshots carry no codec ID either and are always deflated.
+	 */
+	private static final byte[] META_MAGIC = {'H', 'V', 'L', 'O'};
+	private static final int META_VERSION_DEFLATE = 1;
+	private static final int META_VERSION_CODEC = 2;
+	private static final int META_VERSION = 3;
+	private static final int META_HEADER_LENGTH = META_MAGIC.length + 2;
+	private static final int META_TRAILER_LENGTH = 4;
+	
+	private static final int DEFAULT_LOCK_STRIPES = 64;
+	
+	/**
+	 * The codec new snapshots are compressed with.
+	 */
+	private final MetaCodec codec_;
+	
+	/**
+	 * Guards appends to, and rotation of, the mutation log of an index.
+	 */
+	private final Striped<Lock> logLocks_;
+	
+	/**
+	 * Guards saves of an index such that no two threads ever write the
+	 * same snapshot on disk at the same time.
+	 */
+	private final Striped<Lock> saveLocks_;
+	
+	/**
+	 * In-memory accounting of the mutation log of each index, used to
+	 * decide when the log is due for compaction.
+	 */
+	private final ConcurrentMap<String, LogStats> logStats_;
+	
+	public MetaObjectStore(final File storeDir, final MetaCodec codec) {
 		super(storeDir);
+		codec_ = checkNotNull(codec, "Meta data codec cannot be null.");
+		logLocks_ = Striped.lock(DEFAULT_LOCK_STRIPES);
+		saveLocks_ = Striped.lock(DEFAULT_LOCK_STRIPES);
+		logStats_ = new ConcurrentHashMap<String, LogStats>();
+	}
+	
+	public MetaObjectStore(final File storeDir) {
+		this(storeDir, DEFAULT_CODEC);
+	}
+	
+	/**
+	 * Writes the given entity, in its entirety, to the given stream.
+	 */
+	protected abstract void write(final StoreableEntity entity,
+		final OutputStream os) throws Exception;
+	
+	/**
+	 * Encodes a single record to be appended to a mutation log.
+	 */
+	protected abstract byte[] encode(final HavaloEntity record)
+		throws Exception;
+	
+	/**
+	 * Called once for each intact record found in the mutation logs of
+	 * an index, in the order the records were appended.
+	 */
+	protected static interface LogRecordHandler {
+		public void handle(final byte[] record) throws Exception;
 	}
 		
 	/**
 	 * The caller is most definitely responsible for closing the
-	 * returned {@link InputStream} when finished with it.
+	 * returned {@link InputStream} when finished with it.  The returned
+	 * stream is already decompressed, with whatever codec the snapshot
+	 * was written with.
 	 * @param index
 	 * @return
 	 */
 	@Override
 	public InputStream getInputStream(final String index) {
+		return getInputStream(index, false);
+	}
+	
+	/**
+	 * Returns the last saved snapshot of the given index, or the one it
+	 * replaced if previous is true.  The checksum of the snapshot is
+	 * verified before any of it is returned.
+	 */
+	protected final InputStream getInputStream(final String index,
+		final boolean previous) {
+		final File meta = getCanonicalFile(index, (previous) ?
+			PREVIOUS_META_EXTENSION : META_EXTENSION, false);
 		InputStream is = null;
 		try {
-			is = new GZIPInputStream(new FileInputStream(
-				getCanonicalFile(index, false)));
+			final long length = meta.length();
+			is = new BufferedInputStream(new FileInputStream(meta));
+			final DataInputStream header = new DataInputStream(is);
+			final byte[] magic = new byte[META_MAGIC.length];
+			header.readFully(magic);
+			final int version = header.readUnsignedByte();
+			if(!Arrays.equals(META_MAGIC, magic)) {
+				throw new IOException("Unrecognized meta data format.");
+			} else if(version == META_VERSION_DEFLATE) {
+				return getById(DEFLATE_ID).decompress(is);
+			} else if(version == META_VERSION_CODEC) {
+				return getById(header.readUnsignedByte()).decompress(is);
+			} else if(version == META_VERSION) {
+				final MetaCodec codec = getById(header.readUnsignedByte());
+				verifyChecksum(meta, length);
+				// Bounded, such that the trailing checksum is never read
+				// as part of the snapshot.
+				return codec.decompress(new BoundedInputStream(is,
+					length - META_HEADER_LENGTH - META_TRAILER_LENGTH));
+			}
+			throw new IOException("Unrecognized meta data format " +
+				"version: " + version);
 		} catch (Exception e) {
+			closeQuietly(is);
 			throw new ObjectLoadException("Failed to read entity: " +
 				index, e);
 		}
-		return is;
+	}
+	
+	/**
+	 * Returns true if a snapshot of the given index, or at least the
+	 * previous generation of one, exists on disk.
+	 */
+	public boolean exists(final String index) {
+		return getCanonicalFile(index, META_EXTENSION, false).exists() ||
+			hasPrevious(index);
+	}
+	
+	/**
+	 * Returns true if the previous generation of the snapshot of the
+	 * given index exists on disk.
+	 */
+	public boolean hasPrevious(final String index) {
+		return getCanonicalFile(index, PREVIOUS_META_EXTENSION,
+			false).exists();
 	}
 	
 	@Override
 	public void save(final StoreableEntity entity) {
+		final String index = entity.getKey();
+		final Lock saveLock = saveLocks_.get(index);
+		saveLock.lock();
+		try {
+			if(!isSaveable(entity)) {
+				return;
+			}
+			// Move the live log out of the way before the entity is
+			// serialized.  Every record in the rotated log describes a
+			// mutation that is already visible in the entity we're about
+			// to write, so once the snapshot is on disk the rotated log
+			// is only needed alongside the previous snapshot.  Records
+			// appended while the snapshot is being written land in a fresh
+			// live log, and are replayed on top of it.
+			rotateLog(index);
+			retireRotatedLog(index, writeSnapshot(entity));
+		} finally {
+			// Whether or not the save worked, another compaction of
+			// this index may be scheduled from here on out.
+			getLogStats(index).compactionPending_.set(false);
+			saveLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes a new snapshot of the given entity in place.
+	 * @return true if the snapshot that was replaced became the previous
+	 * generation, false if there was no snapshot to replace
+	 */
+	private boolean writeSnapshot(final StoreableEntity entity) {
+		final String index = entity.getKey();
+		final File meta = getCanonicalFile(index, META_EXTENSION, true);
+		final File temp = getSiblingFile(meta, TEMP_SUFFIX);
 		FileOutputStream fos = null;
-		GZIPOutputStream gos = null;
-		Writer writer = null; 
+		OutputStream cos = null;
 		try {
-			fos = new FileOutputStream(getCanonicalFile(entity));
-			gos = new GZIPOutputStream(fos) {
-				// Ugly anonymous constructor hack to set the compression
-				// level on the underlying Deflater to "max compression".
-				{ def.setLevel(BEST_COMPRESSION); }
-			};
-			writer = new OutputStreamWriter(gos, UTF_8);
-			// Call the entity to write itself to the output stream.
-			entity.toWriter(writer);
-			writer.flush(); // Muy importante
-			gos.finish(); // Muy importante mucho!
+			fos = new FileOutputStream(temp);
+			final CRC32 crc = new CRC32();
+			final DataOutputStream os = new DataOutputStream(
+				new BufferedOutputStream(fos));
+			final OutputStream checked = new CheckedOutputStream(os, crc);
+			checked.write(META_MAGIC);
+			checked.write(META_VERSION);
+			checked.write(codec_.getId());
+			cos = codec_.compress(checked);
+			// Call the sub-class to write the entity to the output stream.
+			write(entity, cos);
+			cos.close(); // Muy importante mucho!
+			os.writeInt((int)crc.getValue());
+			os.flush(); // Muy importante
+			// The snapshot must be on disk before it replaces the last
+			// one, or a crash could leave behind a renamed, but empty, file.
+			fos.getFD().sync();
+			fos.close();
+			// Keep the snapshot being replaced as the previous generation.
+			// A crash between the two renames leaves no snapshot in place,
+			// which a load handles by falling back to the previous one.
+			final boolean replaced = meta.exists();
+			if(replaced) {
+				move(meta.toPath(), getCanonicalFile(index,
+					PREVIOUS_META_EXTENSION, true).toPath(), ATOMIC_MOVE);
+			}
+			move(temp.toPath(), meta.toPath(), ATOMIC_MOVE);
+			syncDirectory(meta.getParentFile());
+			return replaced;
 		} catch (Exception e) {
+			deleteQuietly(temp);
 			throw new ObjectFlushException("Failed to save entity: " +
-				entity.getKey(), e);
+				index, e);
 		} finally {
-			closeQuietly(writer);
-			closeQuietly(gos);
+			closeQuietly(cos);
 			closeQuietly(fos);
 		}
 	}
 	
+	/**
+	 * Keeps the rotated log, now folded into the last saved snapshot, as
+	 * the log of the previous generation.  If the previous snapshot did
+	 * not change, the rotated log is appended to the previous log, which
+	 * must still cover every mutation since the previous snapshot.
+	 */
+	private void retireRotatedLog(final String index,
+		final boolean replaced) {
+		final File rotated = getCanonicalFile(index, ROTATED_LOG_EXTENSION,
+			false);
+		if(rotated.exists()) {
+			try {
+				final File previous = getCanonicalFile(index,
+					PREVIOUS_LOG_EXTENSION, true);
+				if(!replaced && previous.exists()) {
+					appendLog(rotated, previous);
+				} else {
+					move(rotated.toPath(), previous.toPath(), ATOMIC_MOVE);
+				}
+			} catch (IOException e) {
+				// Not fatal; the rotated log is replayed on top of the
+				// new snapshot, which is harmless, and folded into the
+				// next rotation.
+				logger__.warn("Failed to retire rotated log (index=" +
+					index + ")", e);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the last saved snapshot of the given index aside, typically
+	 * because it was found unreadable and the index was rebuilt from the
+	 * previous generation.  The next save then keeps the previous
+	 * generation, instead of the unreadable snapshot, around.
+	 */
+	protected final void setAside(final String index) {
+		final File meta = getCanonicalFile(index, META_EXTENSION, false);
+		if(meta.exists()) {
+			try {
+				move(meta.toPath(), getSiblingFile(meta,
+					CORRUPT_SUFFIX).toPath(), ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new ObjectFlushException("Failed to set aside " +
+					"snapshot of entity: " + index, e);
+			}
+		}
+	}
+	
+	/**
+	 * Called under the save lock of the entity, right before it is saved.
+	 * Sub-classes can veto the save of an entity that no longer exists,
+	 * such that a save racing with a {@link #delete(String)} never brings
+	 * the entity back from the dead.
+	 */
+	protected boolean isSaveable(final StoreableEntity entity) {
+		return true;
+	}
+	
 	@Override
 	public void delete(final String index) {
+		// Waits for any save in progress to finish, such that it can't
+		// leave a fresh snapshot behind.
+		final Lock saveLock = saveLocks_.get(index);
+		saveLock.lock();
 		try {
 			// Actually attempt to delete it, or report failure.
-			if(!deleteQuietly(getCanonicalFile(index, false))) {
+			if(!deleteQuietly(getCanonicalFile(index, META_EXTENSION,
+				false))) {
 				throw new IOException("Deletion of index " + index +
 					" failed.");
 			}
+			// Previous generations and logs may or may not exist, which
+			// is fine.
+			final File meta = getCanonicalFile(index, META_EXTENSION, false);
+			deleteQuietly(getSiblingFile(meta, TEMP_SUFFIX));
+			deleteQuietly(getSiblingFile(meta, CORRUPT_SUFFIX));
+			deleteQuietly(getCanonicalFile(index, PREVIOUS_META_EXTENSION,
+				false));
+			deleteQuietly(getCanonicalFile(index, PREVIOUS_LOG_EXTENSION,
+				false));
+			deleteQuietly(getCanonicalFile(index, ROTATED_LOG_EXTENSION,
+				false));
+			deleteQuietly(getCanonicalFile(index, LOG_EXTENSION, false));
+			logStats_.remove(index);
 		} catch (Exception e) {
 			throw new ObjectFlushException("Failed to delete entity: " +
 				index, e);
+		} finally {
+			saveLock.unlock();
 		}
 	}
-		
-	private File getCanonicalFile(final StoreableEntity entity) {
-		return getCanonicalFile(entity.getKey(), true);
+	
+	@Override
+	public void append(final String index, final HavaloEntity record) {
+		final Lock logLock = getLogLock(index);
+		logLock.lock();
+		FileOutputStream fos = null;
+		try {
+			final byte[] bytes = encode(record);
+			fos = new FileOutputStream(getCanonicalFile(index, LOG_EXTENSION,
+				true), true);
+			final boolean newLog = (fos.getChannel().size() == 0L);
+			final ByteBuffer frame = ByteBuffer.allocate(
+				((newLog) ? LOG_HEADER_LENGTH : 0) +
+				LOG_FRAME_OVERHEAD + bytes.length);
+			if(newLog) {
+				frame.put(LOG_MAGIC).put((byte)LOG_VERSION);
+			}
+			frame.putInt(bytes.length).put(bytes).putInt(crc32(bytes));
+			// A single write per record; a crash can only ever tear the
+			// last record in the log, which is detected (and dropped) by
+			// its checksum on replay.
+			fos.write(frame.array(), 0, frame.position());
+			fos.flush();
+			getLogStats(index).append(frame.position());
+		} catch (Exception e) {
+			throw new ObjectFlushException("Failed to append record to " +
+				"log: " + index, e);
+		} finally {
+			closeQuietly(fos);
+			logLock.unlock();
+		}
+	}
+	
+	/**
+	 * Hands every intact record in the mutation logs of the given index,
+	 * oldest first, to the given handler.  A torn or corrupt tail, usually
+	 * left behind by a crash in the middle of an append, is truncated such
+	 * that new records can be appended safely after it.
+	 * @param previous true to also replay the log of the previous
+	 * generation, when replaying on top of the previous snapshot
+	 * @return the number of records replayed
+	 */
+	protected final long replayLogs(final String index,
+		final boolean previous, final LogRecordHandler handler) {
+		long records = 0L;
+		try {
+			if(previous) {
+				final File log = getCanonicalFile(index,
+					PREVIOUS_LOG_EXTENSION, false);
+				if(log.exists()) {
+					replayLog(log, handler);
+				}
+			}
+			// Oldest first: a rotated log only exists if a previous save
+			// did not complete.
+			for(final String extension : new String[]{ROTATED_LOG_EXTENSION,
+				LOG_EXTENSION}) {
+				final File log = getCanonicalFile(index, extension, false);
+				if(log.exists()) {
+					records += replayLog(log, handler);
+				}
+			}
+		} catch (Exception e) {
+			throw new ObjectLoadException("Failed to replay logs of " +
+				"entity: " + index, e);
+		}
+		resetLogStats(index, records);
+		return records;
+	}
+	
+	private static final long replayLog(final File log,
+		final LogRecordHandler handler) throws Exception {
+		long records = 0L;
+		try(final RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+			final FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+			long valid = 0L;
+			if(length >= LOG_HEADER_LENGTH) {
+				final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(newInputStream(channel)));
+				final byte[] magic = new byte[LOG_MAGIC.length];
+				in.readFully(magic);
+				final int version = in.readUnsignedByte();
+				if(!Arrays.equals(LOG_MAGIC, magic) || version != LOG_VERSION) {
+					throw new IOException("Unrecognized log format (file=" +
+						log.getAbsolutePath() + ", version=" + version + ")");
+				}
+				valid = LOG_HEADER_LENGTH;
+				while(valid + LOG_FRAME_OVERHEAD <= length) {
+					final int size = in.readInt();
+					if(size < 0 || valid + LOG_FRAME_OVERHEAD + size > length) {
+						break; // Torn
+					}
+					final byte[] record = new byte[size];
+					in.readFully(record);
+					if(in.readInt() != crc32(record)) {
+						break; // Corrupt
+					}
+					handler.handle(record);
+					valid += LOG_FRAME_OVERHEAD + size;
+					++records;
+				}
+			}
+			if(valid < length) {
+				logger__.warn("Truncating torn or corrupt log tail (file=" +
+					log.getAbsolutePath() + ", length=" + length +
+						", valid=" + valid + ")");
+				channel.truncate(valid);
+			}
+		}
+		return records;
+	}
+	
+	@Override
+	public long getLogRecordCount(final String index) {
+		return getLogStats(index).records_.get();
+	}
+	
+	@Override
+	public long getLogSize(final String index) {
+		return getLogStats(index).bytes_.get();
 	}
 	
-	private File getCanonicalFile(final String index,
-                                  final boolean create) {
-		return getCanonicalObject(storeDir_, index + JSON_EXTENSION,
+	/**
+	 * Returns true, exactly once, when the mutation log of the given
+	 * index has grown beyond either of the given thresholds.  Further
+	 * calls return false until the index has been saved again, such that
+	 * a single compaction is scheduled per log.
+	 */
+	public boolean shouldCompact(final String index, final long maxRecords,
+		final long maxBytes) {
+		final LogStats stats = getLogStats(index);
+		if(stats.records_.get() >= maxRecords ||
+			stats.bytes_.get() >= maxBytes) {
+			return stats.compactionPending_.compareAndSet(false, true);
+		}
+		return false;
+	}
+	
+	/**
+	 * Resets the log accounting of the given index to the number of
+	 * records found on disk, typically after the logs were replayed.
+	 */
+	private void resetLogStats(final String index, final long records) {
+		long bytes = 0L;
+		for(final String extension : new String[]{ROTATED_LOG_EXTENSION,
+			LOG_EXTENSION}) {
+			// Returns 0L if the file does not exist.
+			bytes += getCanonicalFile(index, extension, false).length();
+		}
+		final LogStats stats = getLogStats(index);
+		stats.records_.set(records);
+		stats.bytes_.set(bytes);
+	}
+	
+	private LogStats getLogStats(final String index) {
+		LogStats stats = logStats_.get(index);
+		if(stats == null) {
+			final LogStats existing = logStats_.putIfAbsent(index,
+				stats = new LogStats());
+			if(existing != null) {
+				stats = existing;
+			}
+		}
+		return stats;
+	}
+	
+	/**
+	 * Returns the lock that guards the mutation log of the given index.
+	 * Sub-classes can hold this lock around an in-memory mutation and
+	 * its corresponding {@link #append(String, HavaloEntity)} to keep the
+	 * order of records in the log consistent with the order of mutations.
+	 */
+	protected final Lock getLogLock(final String index) {
+		return logLocks_.get(index);
+	}
+	
+	private void rotateLog(final String index) {
+		final Lock logLock = getLogLock(index);
+		logLock.lock();
+		try {
+			final File log = getCanonicalFile(index, LOG_EXTENSION, false);
+			if(!log.exists()) {
+				return;
+			}
+			// From here on, the records in the live log are accounted for
+			// by the snapshot being saved.
+			getLogStats(index).reset();
+			final File rotated = getCanonicalFile(index,
+				ROTATED_LOG_EXTENSION, false);
+			if(rotated.exists()) {
+				// A previous save never finished; fold the records of the
+				// live log into the rotated one so the replay order is
+				// preserved.
+				appendLog(log, rotated);
+			} else if(!log.renameTo(rotated)) {
+				throw new IOException("Failed to rotate log: " +
+					log.getAbsolutePath());
+			}
+		} catch (Exception e) {
+			throw new ObjectFlushException("Failed to rotate log of " +
+				"entity: " + index, e);
+		} finally {
+			logLock.unlock();
+		}
+	}
+	
+	/**
+	 * Appends the records of one log to another, then deletes the former.
+	 */
+	private static final void appendLog(final File from, final File to)
+		throws IOException {
+		try(final FileChannel in = new FileInputStream(from).getChannel();
+			final FileChannel out = new FileOutputStream(to,
+				true).getChannel()) {
+			final long size = in.size();
+			long position = Math.min(LOG_HEADER_LENGTH, size);
+			while(position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+		}
+		if(!from.delete()) {
+			throw new IOException("Failed to delete log: " +
+				from.getAbsolutePath());
+		}
+	}
+	
+	private static final File getSiblingFile(final File file,
+		final String suffix) {
+		return new File(file.getParentFile(), file.getName() + suffix);
+	}
+	
+	private static final void verifyChecksum(final File meta,
+		final long length) throws IOException {
+		if(length < META_HEADER_LENGTH + META_TRAILER_LENGTH) {
+			throw new IOException("Truncated snapshot (file=" +
+				meta.getAbsolutePath() + ", length=" + length + ")");
+		}
+		try(final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(meta)))) {
+			final CRC32 crc = new CRC32();
+			final byte[] buffer = new byte[8192];
+			long remaining = length - META_TRAILER_LENGTH;
+			while(remaining > 0L) {
+				final int n = (int)Math.min(buffer.length, remaining);
+				in.readFully(buffer, 0, n);
+				crc.update(buffer, 0, n);
+				remaining -= n;
+			}
+			if(in.readInt() != (int)crc.getValue()) {
+				throw new IOException("Snapshot checksum mismatch (file=" +
+					meta.getAbsolutePath() + ")");
+			}
+		}
+	}
+	
+	/**
+	 * Makes renames within the given directory durable.  Not every
+	 * platform supports syncing a directory, in which case the renames
+	 * are as durable as the file system makes them.
+	 */
+	private static final void syncDirectory(final File dir) {
+		try(final FileChannel channel = FileChannel.open(dir.toPath(),
+			StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			logger__.debug("Failed to sync directory: " +
+				dir.getAbsolutePath(), e);
+		}
+	}
+	
+	protected final File getCanonicalFile(final String index,
+                                          final String extension,
+                                          final boolean create) {
+		return getCanonicalObject(storeDir_, index + extension,
 			create).getFile();
 	}
 	
+	private static final int crc32(final byte[] bytes) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return (int)crc.getValue();
+	}
+	
+	private static final class LogStats {
+		
+		private final AtomicLong records_ = new AtomicLong(0L);
+		private final AtomicLong bytes_ = new AtomicLong(0L);
+		private final AtomicBoolean compactionPending_ =
+			new AtomicBoolean(false);
+		
+		private void append(final long bytes) {
+			records_.incrementAndGet();
+			bytes_.addAndGet(bytes);
+		}
+		
+		private void reset() {
+			records_.set(0L);
+			bytes_.set(0L);
+		}
+		
+	}
+	
 }
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.stores;
+
+/**
+ * The ways objects can be laid out on disk, under their repository.
+ */
+public enum ObjectLayout {
+	
+	/**
+	 * The Base32 encoded name of the object, split into nested directories
+	 * of the max filename length.  With a short max filename length, that
+	 * is one directory per couple of characters of the name.
+	 */
+	SPLIT("split"),
+	
+	/**
+	 * A fixed, two level, fan-out of directories named after the first
+	 * two and next two characters of the (hex encoded hash) name of the
+	 * object, e.g., "ab/cd/abcd0123...".
+	 */
+	FANOUT("fanout");
+	
+	private final String name_;
+	
+	private ObjectLayout(final String name) {
+		name_ = name;
+	}
+	
+	public String getName() {
+		return name_;
+	}
+	
+	@Override
+	public String toString() {
+		return name_;
+	}
+	
+	/**
+	 * Returns the layout with the given name, as configured.
+	 */
+	public static final ObjectLayout getByName(final String name) {
+		for(final ObjectLayout layout : values()) {
+			if(layout.name_.equalsIgnoreCase(name)) {
+				return layout;
+			}
+		}
+		throw new IllegalArgumentException("Unrecognized object " +
+			"layout: " + name);
+	}
+	
+}
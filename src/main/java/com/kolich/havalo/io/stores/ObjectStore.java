@@ -128,6 +128,38 @@ public abstract class ObjectStore {
 			makeParentDirs);
 	}
 	
+	/**
+	 * Given an index, returns a {@link File} object that points to its
+	 * location on disk under the given layout.  The {@link ObjectLayout#FANOUT}
+	 * layout uses the index as the filename as-is, so it only supports
+	 * (hex encoded) hashes as an index.
+	 */
+	protected final DiskObject getCanonicalObject(final File parent,
+                                                  final String index,
+                                                  final ObjectLayout layout,
+                                                  final boolean makeParentDirs) {
+		if(layout == ObjectLayout.SPLIT) {
+			return getCanonicalObject(parent, index, makeParentDirs);
+		}
+		try {
+			final File f = new File(new File(new File(parent,
+				index.substring(0, 2)), index.substring(2, 4)), index);
+			if(makeParentDirs) {
+				try {
+					forceMkdir(f.getParentFile());
+				} catch (Exception e) {
+					throw new IOException("Could not create required parent " +
+						"directories for object (file=" + f.getAbsolutePath() +
+							")", e);
+				}
+			}
+			return new DiskObject(index, f, new File(parent, index));
+		} catch (Exception e) {
+			throw new ObjectLoadException("Failed to build canonical disk " +
+				"object for index/key: " + index, e);
+		}
+	}
+	
 	/*
 	protected ObjectList listFiles(final File directory,
 		final boolean recursive) {
@@ -0,0 +1,247 @@
+/**
+ * Copyright (c) 2015 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.havalo.io.stores;
+
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static org.apache.commons.io.FileUtils.forceMkdir;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kolich.havalo.entities.types.SegmentPointer;
+
+/**
+ * The packed segments of a single repository: append only files that
+ * hold the values of many small objects back to back, such that a small
+ * object costs a few bytes in a shared file instead of a file (and a
+ * chain of directories) of its own.
+ * 
+ * Values are only ever appended to the active (highest numbered) segment,
+ * which is sealed and replaced by a new one once it grows beyond the max
+ * segment size.  Values that are overwritten or deleted leave garbage
+ * behind in their segment, which is reclaimed by rewriting the live values
+ * of mostly-garbage sealed segments into the active one, see
+ * {@link com.kolich.havalo.io.managers.SegmentCollector}.
+ */
+public final class SegmentStore {
+	
+	private static final String SEGMENT_EXTENSION = ".seg";
+	
+	private final File dir_;
+	private final long maxSegmentSize_;
+	
+	/**
+	 * Bytes known to be garbage, overwritten or deleted values, since the
+	 * last collection.
+	 */
+	private final AtomicLong garbage_;
+	
+	// Guarded by "this"
+	private int activeId_ = -1;
+	private FileChannel active_ = null;
+	private long activeSize_ = 0L;
+	
+	public SegmentStore(final File dir, final long maxSegmentSize) {
+		dir_ = dir;
+		maxSegmentSize_ = maxSegmentSize;
+		garbage_ = new AtomicLong(0L);
+	}
+	
+	/**
+	 * Appends the given value to the active segment, and returns where it
+	 * was written.
+	 */
+	public synchronized SegmentPointer append(final byte[] value)
+		throws IOException {
+		if(active_ == null) {
+			open();
+		} else if(activeSize_ > 0L &&
+			activeSize_ + value.length > maxSegmentSize_) {
+			// Seal the active segment, and start a new one.  The sealed
+			// segment is synced first, such that a later force() covers
+			// everything appended before it too.
+			active_.force(false);
+			closeQuietly(active_);
+			activeId_++;
+			activeSize_ = 0L;
+			active_ = openSegment(activeId_);
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(value);
+		long position = activeSize_;
+		while(buffer.hasRemaining()) {
+			position += active_.write(buffer, position);
+		}
+		final SegmentPointer pointer = new SegmentPointer(activeId_,
+			activeSize_, value.length);
+		activeSize_ = position;
+		return pointer;
+	}
+	
+	/**
+	 * Opens the segment the given pointer points into for reading.  The
+	 * caller owns, and should close, the returned channel.
+	 */
+	public FileChannel open(final SegmentPointer pointer) throws IOException {
+		return new FileInputStream(getFile(pointer.getSegment())).getChannel();
+	}
+	
+	/**
+	 * Reads the value the given pointer points at.
+	 */
+	public byte[] read(final SegmentPointer pointer) throws IOException {
+		final byte[] value = new byte[(int)pointer.getLength()];
+		try(final FileChannel channel = open(pointer)) {
+			final ByteBuffer buffer = ByteBuffer.wrap(value);
+			long position = pointer.getOffset();
+			while(buffer.hasRemaining()) {
+				final int read = channel.read(buffer, position);
+				if(read < 0) {
+					throw new EOFException("Unexpected end of segment " +
+						"(pointer=" + pointer + ")");
+				}
+				position += read;
+			}
+		}
+		return value;
+	}
+	
+	/**
+	 * Records that the value the given pointer points at is garbage.
+	 * Returns the total number of garbage bytes since the last collection.
+	 */
+	public long release(final SegmentPointer pointer) {
+		return garbage_.addAndGet(pointer.getLength());
+	}
+	
+	public long getGarbage() {
+		return garbage_.get();
+	}
+	
+	public void resetGarbage() {
+		garbage_.set(0L);
+	}
+	
+	/**
+	 * Returns the ID of the active segment, or -1 if none was written yet.
+	 */
+	public synchronized int getActiveSegment() throws IOException {
+		if(active_ == null && !getSegments().isEmpty()) {
+			open();
+		}
+		return activeId_;
+	}
+	
+	/**
+	 * Returns the IDs of all segments on disk, in ascending order.
+	 */
+	public List<Integer> getSegments() {
+		final List<Integer> segments = new ArrayList<Integer>();
+		final String[] names = dir_.list();
+		if(names != null) {
+			for(final String name : names) {
+				if(name.endsWith(SEGMENT_EXTENSION)) {
+					try {
+						segments.add(Integer.parseInt(name.substring(0,
+							name.length() - SEGMENT_EXTENSION.length())));
+					} catch (NumberFormatException e) {
+						// Not a segment, ignore.
+					}
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+	
+	public long getSize(final int segment) {
+		return getFile(segment).length();
+	}
+	
+	/**
+	 * Deletes the given sealed segment.
+	 */
+	public synchronized void delete(final int segment) {
+		if(segment == activeId_) {
+			throw new IllegalArgumentException("Cannot delete the active " +
+				"segment: " + segment);
+		}
+		deleteQuietly(getFile(segment));
+	}
+	
+	/**
+	 * Forces everything appended so far to disk.
+	 */
+	public synchronized void force() throws IOException {
+		if(active_ != null) {
+			active_.force(false);
+		}
+	}
+	
+	public synchronized void close() {
+		closeQuietly(active_);
+		active_ = null;
+		activeId_ = -1;
+		activeSize_ = 0L;
+	}
+	
+	/**
+	 * Opens the highest numbered segment on disk, or creates the first one,
+	 * for appending.  Anything past the last value referenced by an object
+	 * (e.g., a value torn by a crash) is garbage, and left alone.
+	 */
+	private void open() throws IOException {
+		forceMkdir(dir_);
+		final List<Integer> segments = getSegments();
+		activeId_ = (segments.isEmpty()) ? 0 :
+			segments.get(segments.size() - 1);
+		active_ = openSegment(activeId_);
+		activeSize_ = active_.size();
+	}
+	
+	private FileChannel openSegment(final int segment) throws IOException {
+		@SuppressWarnings("resource") // Closed with the channel
+		final RandomAccessFile file = new RandomAccessFile(getFile(segment),
+			"rw");
+		return file.getChannel();
+	}
+	
+	private File getFile(final int segment) {
+		return new File(dir_, String.format("%08d%s", segment,
+			SEGMENT_EXTENSION));
+	}
+	
+}